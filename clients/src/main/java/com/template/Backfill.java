@@ -0,0 +1,77 @@
+package com.template;
+
+import com.template.flows.BackfillTokenTransactions;
+import com.template.flows.TokenTransactionBackfill;
+import net.corda.client.rpc.CordaRPCClient;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import static net.corda.core.utilities.NetworkHostAndPort.parse;
+
+/**
+ * Backfills token-transactions from a node's token transaction history, one batch per flow.
+ *
+ * Run it against each holder node, with its own cursor file; the history is found where the tokens were recorded,
+ * and the explorer writes each historical transaction once, however many of its holders backfill it.
+ *
+ * The cursor (i.e. the last processed transaction and the time it was recorded) is saved to the cursor file after
+ * each batch, so an interrupted backfill resumes where it stopped.
+ *
+ * Usage: Backfill <node address> <rpc username> <rpc password> <explorer name> <cursor file> [batch size]
+ */
+public class Backfill {
+    private static final Logger logger = LoggerFactory.getLogger(Backfill.class);
+
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 5 && args.length != 6) throw new IllegalArgumentException("Usage: Backfill " +
+                "<node address> <rpc username> <rpc password> <explorer name> <cursor file> [batch size]");
+        final CordaRPCOps proxy = new CordaRPCClient(parse(args[0])).start(args[1], args[2]).getProxy();
+        final Party explorer = proxy.wellKnownPartyFromX500Name(CordaX500Name.parse(args[3]));
+        if (explorer == null) throw new IllegalArgumentException("Unknown explorer " + args[3]);
+        final Path cursorFile = Paths.get(args[4]);
+        final int batchSize = args.length == 6 ? Integer.parseInt(args[5]) : DEFAULT_BATCH_SIZE;
+
+        String cursor = Files.exists(cursorFile) ?
+                new String(Files.readAllBytes(cursorFile), StandardCharsets.UTF_8).trim() : null;
+        if (cursor != null)
+            logger.info("Resuming after {}.", cursor);
+
+        final long start = System.nanoTime();
+        long transactions = 0;
+        long records = 0;
+        TokenTransactionBackfill.BackfillReport report;
+        do {
+            report = proxy.startFlowDynamic(BackfillTokenTransactions.class, cursor, batchSize, explorer)
+                    .getReturnValue().get();
+            transactions += report.getTransactions();
+            records += report.getRecords();
+            cursor = report.getCursor();
+
+            // The batch is committed; so it's safe to move the cursor.
+            if (cursor != null) {
+                final Path temporary = Paths.get(cursorFile + ".tmp");
+                Files.write(temporary, cursor.getBytes(StandardCharsets.UTF_8));
+                Files.move(temporary, cursorFile, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            logger.info("Processed {} transactions, wrote {} token-transactions ({} transactions/s).",
+                    transactions, records, String.format("%.0f", transactions / seconds));
+        } while (!report.isDone());
+
+        // RPC client threads are not daemons.
+        System.exit(0);
+    }
+}
@@ -1,13 +1,35 @@
 package com.template;
 
+import com.template.flows.IssueTokensWithTransaction;
 import net.corda.client.rpc.CordaRPCClient;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
 import net.corda.core.messaging.CordaRPCOps;
 import net.corda.core.node.NodeInfo;
+import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.utilities.NetworkHostAndPort;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static net.corda.core.utilities.NetworkHostAndPort.parse;
 
@@ -15,22 +37,219 @@ import static net.corda.core.utilities.NetworkHostAndPort.parse;
  * Connects to a Corda node via RPC and performs RPC operations on the node.
  *
  * The RPC connection is configured using command line arguments.
+ *
+ * With "issue", issues tokens to every holder of a CSV file (lines of "holder,quantity", where holder is an
+ * X500 name, optionally quoted) and writes one result line per holder.
+ * The file is streamed; at most "in flight" flows run at a time, each issuing to up to "holders per flow" holders.
+ * Flows are cut at fixed line numbers (lines 1 to "holders per flow", and so on), whichever lines fail to parse or
+ * name an unknown holder; each flow's idempotency key is a hash of the file's contents and its first line number.
+ * So re-running the same file with the same "holders per flow" skips the flows that were already issued (reported
+ * as "SKIPPED", not as failures), and a different file with the same name doesn't. Lines that failed are re-run
+ * from a file of their own.
  */
 public class Client {
     private static final Logger logger = LoggerFactory.getLogger(Client.class);
 
-    public static void main(String[] args) {
+    private static final int DEFAULT_IN_FLIGHT = 16;
+    private static final int DEFAULT_HOLDERS_PER_FLOW = 20;
+    private static final int PARTY_CACHE_SIZE = 10_000;
+
+    public static void main(String[] args) throws Exception {
         // Create an RPC connection to the node.
-        if (args.length != 3) throw new IllegalArgumentException("Usage: Client <node address> <rpc username> <rpc password>");
+        if (args.length != 3 && !(args.length >= 7 && args.length <= 9 && args[3].equals("issue")))
+            throw new IllegalArgumentException("Usage: Client <node address> <rpc username> <rpc password> " +
+                    "[issue <csv file> <explorer name> <results file> [in flight] [holders per flow]]");
         final NetworkHostAndPort nodeAddress = parse(args[0]);
         final String rpcUsername = args[1];
         final String rpcPassword = args[2];
         final CordaRPCClient client = new CordaRPCClient(nodeAddress);
         final CordaRPCOps proxy = client.start(rpcUsername, rpcPassword).getProxy();
 
-        // Interact with the node.
-        // For example, here we print the nodes on the network.
-        final List<NodeInfo> nodes = proxy.networkMapSnapshot();
-        logger.info("{}", nodes);
+        if (args.length == 3) {
+            // Interact with the node.
+            // For example, here we print the nodes on the network.
+            final List<NodeInfo> nodes = proxy.networkMapSnapshot();
+            logger.info("{}", nodes);
+            return;
+        }
+
+        final int inFlight = args.length > 7 ? Integer.parseInt(args[7]) : DEFAULT_IN_FLIGHT;
+        final int holdersPerFlow = args.length > 8 ? Integer.parseInt(args[8]) : DEFAULT_HOLDERS_PER_FLOW;
+        issueFromCsv(proxy, Paths.get(args[4]), CordaX500Name.parse(args[5]), Paths.get(args[6]),
+                inFlight, holdersPerFlow);
+        // RPC client threads are not daemons.
+        System.exit(0);
+    }
+
+    private static void issueFromCsv(CordaRPCOps proxy, Path csvFile, CordaX500Name explorerName, Path resultsFile,
+                                     int inFlight, int holdersPerFlow)
+            throws IOException, InterruptedException, ExecutionException {
+        final String fileHash = sha256(csvFile);
+        final Party explorer = proxy.wellKnownPartyFromX500Name(explorerName);
+        if (explorer == null) throw new IllegalArgumentException("Unknown explorer " + explorerName);
+
+        // Bounded, least recently used cache of holder parties (empty for unknown holders).
+        final Map<CordaX500Name, Optional<Party>> parties =
+                new LinkedHashMap<CordaX500Name, Optional<Party>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CordaX500Name, Optional<Party>> eldest) {
+                return size() > PARTY_CACHE_SIZE;
+            }
+        };
+        final Semaphore permits = new Semaphore(inFlight);
+        final AtomicLong issued = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        final long start = System.nanoTime();
+
+        try (BufferedReader reader = Files.newBufferedReader(csvFile, StandardCharsets.UTF_8);
+             BufferedWriter results = Files.newBufferedWriter(resultsFile, StandardCharsets.UTF_8)) {
+            results.write("holder,quantity,result");
+            results.newLine();
+
+            List<Party> holders = new ArrayList<>();
+            List<Long> quantities = new ArrayList<>();
+            // First line number of the flow being collected.
+            int firstLine = 1;
+            int lineNumber = 0;
+            String line;
+            try {
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (lineNumber - firstLine == holdersPerFlow) {
+                        if (!holders.isEmpty())
+                            submit(proxy, explorer, holders, quantities, fileHash + ":" + firstLine,
+                                    permits, results, issued, failed, skipped);
+                        holders = new ArrayList<>();
+                        quantities = new ArrayList<>();
+                        firstLine = lineNumber;
+                    }
+                    if (line.trim().isEmpty() || line.startsWith("holder,"))
+                        continue;
+
+                    // X500 names contain commas; the quantity is whatever follows the last one.
+                    final int separator = line.lastIndexOf(',');
+                    final CordaX500Name holderName;
+                    final long quantity;
+                    try {
+                        if (separator < 0)
+                            throw new IllegalArgumentException("expected \"holder,quantity\"");
+                        holderName = CordaX500Name.parse(line.substring(0, separator).trim().replace("\"", ""));
+                        quantity = Long.parseLong(line.substring(separator + 1).trim());
+                    }
+                    catch (IllegalArgumentException ex) {
+                        // Including NumberFormatException.
+                        writeResults(results, line, 0, "ERROR line " + lineNumber + ": " + ex.getMessage());
+                        failed.incrementAndGet();
+                        continue;
+                    }
+                    final Party holder = parties.computeIfAbsent(holderName,
+                            it -> Optional.ofNullable(proxy.wellKnownPartyFromX500Name(it))).orElse(null);
+                    if (holder == null) {
+                        writeResults(results, holderName.toString(), quantity, "ERROR unknown holder");
+                        failed.incrementAndGet();
+                        continue;
+                    }
+
+                    holders.add(holder);
+                    quantities.add(quantity);
+                }
+                if (!holders.isEmpty())
+                    submit(proxy, explorer, holders, quantities, fileHash + ":" + firstLine,
+                            permits, results, issued, failed, skipped);
+            }
+            finally {
+                // Wait for the flows still in flight (also on failure, so their results are written).
+                permits.acquire(inFlight);
+            }
+        }
+
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        logger.info("Issued to {} holders ({} already issued, {} failed) in {} s ({} holders/s).", issued.get(),
+                skipped.get(), failed.get(), String.format("%.1f", seconds), String.format("%.0f", issued.get() / seconds));
+    }
+
+    private static String sha256(Path file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            final byte[] buffer = new byte[64 * 1024];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+                digest.update(buffer, 0, read);
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    // Starts one issuance flow; blocks while "in flight" flows are already running.
+    private static void submit(CordaRPCOps proxy, Party explorer, List<Party> holders, List<Long> quantities,
+                               String idempotencyKey, Semaphore permits, BufferedWriter results,
+                               AtomicLong issued, AtomicLong failed, AtomicLong skipped)
+            throws InterruptedException {
+        permits.acquire();
+        final CordaFuture<SignedTransaction> returnValue;
+        try {
+            returnValue = proxy.startFlowDynamic(IssueTokensWithTransaction.Initiator.class, holders, quantities,
+                    explorer, idempotencyKey).getReturnValue();
+        }
+        catch (RuntimeException ex) {
+            // E.g. the RPC connection failed; the flow never started.
+            failed.addAndGet(holders.size());
+            writeResults(results, holders, quantities, "ERROR " + ex.getMessage(), permits);
+            return;
+        }
+        returnValue.then(future -> {
+            String result;
+            try {
+                final SignedTransaction signedTx = future.get();
+                result = signedTx.getId().toString();
+                issued.addAndGet(holders.size());
+            }
+            catch (Exception ex) {
+                final Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+                final String message = String.valueOf(cause.getMessage());
+                if (message.startsWith(IssueTokensWithTransaction.DUPLICATE_REQUEST)) {
+                    // Issued by an earlier run of the same file.
+                    result = "SKIPPED already issued";
+                    skipped.addAndGet(holders.size());
+                }
+                else {
+                    result = "ERROR " + message;
+                    failed.addAndGet(holders.size());
+                }
+            }
+            writeResults(results, holders, quantities, result, permits);
+            return null;
+        });
+    }
+
+    // Writes the result of one flow, and then frees its place.
+    private static void writeResults(BufferedWriter results, List<Party> holders, List<Long> quantities,
+                                     String result, Semaphore permits) {
+        try {
+            for (int i = 0; i < holders.size(); i++)
+                writeResults(results, holders.get(i).getName().toString(), quantities.get(i), result);
+        }
+        catch (IOException ex) {
+            logger.error("Failed to write results.", ex);
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    private static void writeResults(BufferedWriter results, String holder, long quantity, String result)
+            throws IOException {
+        synchronized (results) {
+            results.write(String.format("\"%s\",%d,\"%s\"", holder, quantity, result.replace("\"", "'")));
+            results.newLine();
+        }
     }
-}
\ No newline at end of file
+}
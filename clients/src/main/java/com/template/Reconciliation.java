@@ -0,0 +1,396 @@
+package com.template;
+
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.template.flows.ArchivedTokenTransactions;
+import com.template.flows.MultiLegTokenTransactionQueries;
+import com.template.flows.TokenTransactionArchive;
+import com.template.schemas.TokenTransactionSchemaV1;
+import com.template.states.TokenTransaction;
+import net.corda.client.rpc.CordaRPCClient;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+import net.corda.core.node.services.vault.QueryCriteria.VaultCustomQueryCriteria;
+import net.corda.core.utilities.NetworkHostAndPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.getField;
+import static net.corda.core.utilities.NetworkHostAndPort.parse;
+
+/**
+ * Reconciles the explorer's token-transactions with the actual FungibleToken holdings of the holder nodes,
+ * and writes the holders whose balances don't match to a CSV report.
+ *
+ * Both sides are scanned in parallel on a fork-join pool: token-transactions are aggregated by the explorer's
+ * database per time range, and FungibleToken states of each holder node are fetched and summed per range of
+ * the time the node recorded them.
+ * Rows moved to the explorer's archive ("ArchivedTokenTransactions.SumByHolderAndType") and legs of multi-leg
+ * token-transactions ("MultiLegTokenTransactionQueries.SumByHolderAndType") are summed by the explorer and added
+ * to the live table's sums.
+ *
+ * Usage: Reconciliation <explorer address> <holder node addresses, comma separated> <rpc username>
+ *        <rpc password> <report file> [parallelism]
+ */
+public class Reconciliation {
+    private static final Logger logger = LoggerFactory.getLogger(Reconciliation.class);
+
+    private static final int PAGE_SIZE = 1000;
+    // Holder node ranges with more token states than this are split further.
+    private static final int MAX_RANGE_STATES = 10 * PAGE_SIZE;
+    private static final Sort BY_STATE_REF = new Sort(Collections.singleton(new Sort.SortColumn(
+            new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF), Sort.Direction.ASC)));
+    // Time ranges per worker thread; more ranges than threads keeps all threads busy when ranges are uneven.
+    private static final int RANGES_PER_THREAD = 4;
+    private static final Duration PROGRESS_INTERVAL = Duration.ofSeconds(5);
+
+    private final CordaRPCOps explorer;
+    private final List<CordaRPCOps> holderNodes;
+    private final ForkJoinPool pool;
+    private final int parallelism;
+    private final Map<AbstractParty, String> holderNames = new ConcurrentHashMap<>();
+
+    // Progress metrics.
+    private final AtomicLong tokenPages = new AtomicLong();
+    private final AtomicLong tokenStates = new AtomicLong();
+    private final AtomicLong transactionRanges = new AtomicLong();
+
+    public Reconciliation(CordaRPCOps explorer, List<CordaRPCOps> holderNodes, int parallelism) {
+        this.explorer = explorer;
+        this.holderNodes = holderNodes;
+        this.parallelism = parallelism;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 5 && args.length != 6) throw new IllegalArgumentException("Usage: Reconciliation " +
+                "<explorer address> <holder node addresses> <rpc username> <rpc password> <report file> [parallelism]");
+        final String rpcUsername = args[2];
+        final String rpcPassword = args[3];
+        final int parallelism = args.length == 6 ? Integer.parseInt(args[5]) :
+                Runtime.getRuntime().availableProcessors();
+
+        final CordaRPCOps explorer = connect(parse(args[0]), rpcUsername, rpcPassword);
+        final List<CordaRPCOps> holderNodes = new ArrayList<>();
+        for (String address : args[1].split(","))
+            holderNodes.add(connect(parse(address.trim()), rpcUsername, rpcPassword));
+
+        final List<Discrepancy> discrepancies = new Reconciliation(explorer, holderNodes, parallelism).run();
+        writeReport(discrepancies, args[4]);
+        // RPC client threads are not daemons.
+        System.exit(0);
+    }
+
+    private static CordaRPCOps connect(NetworkHostAndPort address, String username, String password) {
+        return new CordaRPCClient(address).start(username, password).getProxy();
+    }
+
+    public List<Discrepancy> run() throws InterruptedException, ExecutionException {
+        final long start = System.nanoTime();
+        final ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor();
+        progress.scheduleAtFixedRate(() -> logger.info("Progress: {} token-transaction ranges, {} token pages " +
+                        "({} states).", transactionRanges.get(), tokenPages.get(), tokenStates.get()),
+                PROGRESS_INTERVAL.toMillis(), PROGRESS_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+
+        try {
+            // Both sides run at the same time on the same pool.
+            final ForkJoinTask<Map<String, BigDecimal>> expectedTask = pool.submit(this::expectedBalances);
+            final List<ForkJoinTask<Map<String, BigDecimal>>> actualTasks = holderNodes.stream()
+                    .map(node -> pool.submit(() -> actualBalances(node)))
+                    .collect(Collectors.toList());
+
+            final Map<String, BigDecimal> actual = new HashMap<>();
+            for (ForkJoinTask<Map<String, BigDecimal>> task : actualTasks)
+                merge(actual, task.get());
+            final Map<String, BigDecimal> expected = expectedTask.get();
+
+            // Only holders that live on the given holder nodes can be reconciled.
+            final Set<String> holders = new TreeSet<>();
+            for (CordaRPCOps node : holderNodes)
+                node.nodeInfo().getLegalIdentities().forEach(it -> holders.add(it.getName().toString()));
+
+            final List<Discrepancy> discrepancies = new ArrayList<>();
+            for (String holder : holders) {
+                final BigDecimal expectedBalance = expected.getOrDefault(holder, BigDecimal.ZERO);
+                final BigDecimal actualBalance = actual.getOrDefault(holder, BigDecimal.ZERO);
+                if (expectedBalance.compareTo(actualBalance) != 0)
+                    discrepancies.add(new Discrepancy(holder, expectedBalance, actualBalance));
+            }
+
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            logger.info("Reconciled {} holders ({} token states) in {} s ({} states/s); {} discrepancies.",
+                    holders.size(), tokenStates.get(), String.format("%.1f", seconds),
+                    String.format("%.0f", tokenStates.get() / seconds), discrepancies.size());
+            return discrepancies;
+        }
+        finally {
+            progress.shutdownNow();
+            pool.shutdown();
+        }
+    }
+
+    /*
+    * Expected balance per holder from token-transactions:
+    * received by ISSUE and MOVE, minus sent by MOVE and REDEEM.
+    * */
+    private Map<String, BigDecimal> expectedBalances() throws InterruptedException, ExecutionException {
+        final Map<String, BigDecimal> balances = summedByExplorer();
+        final FieldInfo timestamp = getField("timestamp", TokenTransactionSchemaV1.PersistentTokenTransaction.class);
+        final Instant first = (Instant) aggregate(new VaultCustomQueryCriteria(Builder.min(timestamp)));
+        final Instant last = (Instant) aggregate(new VaultCustomQueryCriteria(Builder.max(timestamp)));
+        if (first == null)
+            return balances;
+
+        // Ranges are [from, to); the last one is extended to include "last".
+        final int rangeCount = parallelism * RANGES_PER_THREAD;
+        final long rangeMillis = Math.max(1, (last.toEpochMilli() - first.toEpochMilli()) / rangeCount + 1);
+        final List<ForkJoinTask<Map<String, BigDecimal>>> tasks = new ArrayList<>();
+        for (Instant from = first; !from.isAfter(last); from = from.plusMillis(rangeMillis)) {
+            final Instant rangeFrom = from;
+            final Instant rangeTo = from.plusMillis(rangeMillis);
+            tasks.add(ForkJoinTask.adapt(() -> expectedBalancesIn(rangeFrom, rangeTo)).fork());
+        }
+
+        for (ForkJoinTask<Map<String, BigDecimal>> task : tasks)
+            merge(balances, task.join());
+        return balances;
+    }
+
+    /*
+    * Same as "expectedBalancesIn", for the rows in the explorer's archive and the legs of multi-leg
+    * token-transactions; both are summed by the explorer over all time.
+    * */
+    private Map<String, BigDecimal> summedByExplorer() throws InterruptedException, ExecutionException {
+        final List<Class<? extends FlowLogic<List<TokenTransactionArchive.HolderTypeSum>>>> flows = Arrays.asList(
+                ArchivedTokenTransactions.SumByHolderAndType.class,
+                MultiLegTokenTransactionQueries.SumByHolderAndType.class);
+        final Map<String, BigDecimal> balances = new HashMap<>();
+        for (Class<? extends FlowLogic<List<TokenTransactionArchive.HolderTypeSum>>> flow : flows) {
+            for (TokenTransactionArchive.HolderTypeSum sum :
+                    explorer.startFlowDynamic(flow, "toHolder").getReturnValue().get()) {
+                if (!sum.getType().equals("REDEEM"))
+                    balances.merge(sum.getHolder(), BigDecimal.valueOf(sum.getSum()), BigDecimal::add);
+            }
+            for (TokenTransactionArchive.HolderTypeSum sum :
+                    explorer.startFlowDynamic(flow, "fromHolder").getReturnValue().get()) {
+                if (!sum.getType().equals("ISSUE"))
+                    balances.merge(sum.getHolder(), BigDecimal.valueOf(sum.getSum()).negate(), BigDecimal::add);
+            }
+        }
+        return balances;
+    }
+
+    private Map<String, BigDecimal> expectedBalancesIn(Instant from, Instant to) {
+        final Map<String, BigDecimal> balances = new HashMap<>();
+        // Received.
+        sumByHolderAndType("toHolder", from, to).forEach((holderAndType, sum) -> {
+            if (!holderAndType.get(1).equals("REDEEM"))
+                balances.merge(holderAndType.get(0), sum, BigDecimal::add);
+        });
+        // Sent.
+        sumByHolderAndType("fromHolder", from, to).forEach((holderAndType, sum) -> {
+            if (!holderAndType.get(1).equals("ISSUE"))
+                balances.merge(holderAndType.get(0), sum.negate(), BigDecimal::add);
+        });
+        transactionRanges.incrementAndGet();
+        return balances;
+    }
+
+    /*
+    * Sum of quantity grouped by (holder column, type), for from <= timestamp < to.
+    * Groups are fetched PAGE_SIZE at a time (ordered by the group columns, so pages are stable); without an explicit
+    * page, the vault rejects results of more than 200 groups.
+    * */
+    private Map<List<String>, BigDecimal> sumByHolderAndType(String holderColumn, Instant from, Instant to) {
+        final FieldInfo timestamp = getField("timestamp", TokenTransactionSchemaV1.PersistentTokenTransaction.class);
+        final FieldInfo quantity = getField("quantity", TokenTransactionSchemaV1.PersistentTokenTransaction.class);
+        final FieldInfo holder = getField(holderColumn, TokenTransactionSchemaV1.PersistentTokenTransaction.class);
+        final FieldInfo type = getField("type", TokenTransactionSchemaV1.PersistentTokenTransaction.class);
+
+        final QueryCriteria criteria = new VaultCustomQueryCriteria(Builder.greaterThanOrEqual(timestamp, from))
+                .and(new VaultCustomQueryCriteria(Builder.lessThan(timestamp, to)))
+                .and(new VaultCustomQueryCriteria(Builder.sum(quantity, Arrays.asList(holder, type))));
+        final Sort byGroup = new Sort(Arrays.asList(
+                new Sort.SortColumn(new SortAttribute.Custom(
+                        TokenTransactionSchemaV1.PersistentTokenTransaction.class, holderColumn), Sort.Direction.ASC),
+                new Sort.SortColumn(new SortAttribute.Custom(
+                        TokenTransactionSchemaV1.PersistentTokenTransaction.class, "type"), Sort.Direction.ASC)));
+
+        final Map<List<String>, BigDecimal> sums = new HashMap<>();
+        for (int page = 1; ; page++) {
+            final List<Object> results = explorer.vaultQueryBy(criteria, new PageSpecification(page, PAGE_SIZE),
+                    byGroup, TokenTransaction.class).getOtherResults();
+            // Results come as [sum, holder, type] triples.
+            for (int i = 0; i + 2 < results.size(); i += 3) {
+                if (results.get(i + 1) == null)
+                    continue;
+                sums.put(Arrays.asList((String) results.get(i + 1), (String) results.get(i + 2)),
+                        BigDecimal.valueOf(((Number) results.get(i)).longValue()));
+            }
+            if (results.size() < 3 * PAGE_SIZE)
+                return sums;
+        }
+    }
+
+    private Object aggregate(QueryCriteria criteria) {
+        final List<Object> results = explorer.vaultQueryByCriteria(criteria, TokenTransaction.class)
+                .getOtherResults();
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    /*
+    * Actual balance per holder from the unconsumed FungibleToken states of one holder node.
+    * States are split by the time the node recorded them (like the token-transaction ranges), instead of being
+    * paged with OFFSET over all of them (which re-reads every skipped row, i.e. is quadratic in the vault size).
+    * Ranges that still hold more than MAX_RANGE_STATES states are split in half; only a range that can't be
+    * split (i.e. one transaction with that many outputs) is paged.
+    * */
+    private Map<String, BigDecimal> actualBalances(CordaRPCOps node) {
+        final Instant first = recordedBound(node, Sort.Direction.ASC);
+        final Instant last = recordedBound(node, Sort.Direction.DESC);
+        if (first == null)
+            return Collections.emptyMap();
+
+        // Ranges are [from, to); the last one ends just after "last".
+        final Instant end = last.plusMillis(1);
+        final int rangeCount = parallelism * RANGES_PER_THREAD;
+        final long rangeMillis = Math.max(1, (end.toEpochMilli() - first.toEpochMilli()) / rangeCount + 1);
+        final List<ForkJoinTask<Map<String, BigDecimal>>> tasks = new ArrayList<>();
+        for (Instant from = first; from.isBefore(end); from = from.plusMillis(rangeMillis)) {
+            final Instant rangeFrom = from;
+            final Instant rangeTo = from.plusMillis(rangeMillis).isBefore(end) ? from.plusMillis(rangeMillis) : end;
+            tasks.add(ForkJoinTask.adapt(() -> actualBalancesIn(node, rangeFrom, rangeTo)).fork());
+        }
+
+        final Map<String, BigDecimal> balances = new HashMap<>();
+        for (ForkJoinTask<Map<String, BigDecimal>> task : tasks)
+            merge(balances, task.join());
+        return balances;
+    }
+
+    private Map<String, BigDecimal> actualBalancesIn(CordaRPCOps node, Instant from, Instant to) {
+        final QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED)
+                .and(recordedTime(BinaryComparisonOperator.GREATER_THAN_OR_EQUAL, from))
+                .and(recordedTime(BinaryComparisonOperator.LESS_THAN, to));
+        final Vault.Page<FungibleToken> firstPage = node.vaultQueryBy(criteria,
+                new PageSpecification(1, PAGE_SIZE), BY_STATE_REF, FungibleToken.class);
+        final long total = firstPage.getTotalStatesAvailable();
+
+        final long middleMillis = (from.toEpochMilli() + to.toEpochMilli()) / 2;
+        if (total > MAX_RANGE_STATES && middleMillis > from.toEpochMilli()) {
+            final Instant middle = Instant.ofEpochMilli(middleMillis);
+            final ForkJoinTask<Map<String, BigDecimal>> upper =
+                    ForkJoinTask.adapt(() -> actualBalancesIn(node, middle, to)).fork();
+            final Map<String, BigDecimal> balances = actualBalancesIn(node, from, middle);
+            merge(balances, upper.join());
+            return balances;
+        }
+
+        final Map<String, BigDecimal> balances = sumPage(node, firstPage.getStates());
+        final long pageCount = (total + PAGE_SIZE - 1) / PAGE_SIZE;
+        for (int page = 2; page <= pageCount; page++) {
+            merge(balances, sumPage(node, node.vaultQueryBy(criteria, new PageSpecification(page, PAGE_SIZE),
+                    BY_STATE_REF, FungibleToken.class).getStates()));
+        }
+        return balances;
+    }
+
+    // Earliest (ASC) or latest (DESC) recorded time of the node's unconsumed FungibleToken states.
+    private static Instant recordedBound(CordaRPCOps node, Sort.Direction direction) {
+        final Sort byRecordedTime = new Sort(Collections.singleton(new Sort.SortColumn(
+                new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME), direction)));
+        final Vault.Page<FungibleToken> page = node.vaultQueryBy(
+                new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED),
+                new PageSpecification(1, 1), byRecordedTime, FungibleToken.class);
+        return page.getStates().isEmpty() ? null : page.getStatesMetadata().get(0).getRecordedTime();
+    }
+
+    private static QueryCriteria recordedTime(BinaryComparisonOperator operator, Instant instant) {
+        return new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED).withTimeCondition(
+                new QueryCriteria.TimeCondition(QueryCriteria.TimeInstantType.RECORDED,
+                        new ColumnPredicate.BinaryComparison<>(operator, instant)));
+    }
+
+    private Map<String, BigDecimal> sumPage(CordaRPCOps node, List<StateAndRef<FungibleToken>> states) {
+        final Map<String, BigDecimal> balances = new HashMap<>();
+        for (StateAndRef<FungibleToken> state : states) {
+            final FungibleToken token = state.getState().getData();
+            // Token-transaction quantities are in whole units, token amounts are in the smallest denomination.
+            balances.merge(holderName(node, token.getHolder()), token.getAmount().toDecimal(), BigDecimal::add);
+        }
+        tokenPages.incrementAndGet();
+        tokenStates.addAndGet(states.size());
+        return balances;
+    }
+
+    // Same format as "TokenTransaction.fromHolder" and "TokenTransaction.toHolder".
+    private String holderName(CordaRPCOps node, AbstractParty holder) {
+        return holderNames.computeIfAbsent(holder, it -> {
+            final CordaX500Name name = it.nameOrNull();
+            if (name != null)
+                return name.toString();
+            final Party party = node.wellKnownPartyFromAnonymous(it);
+            return party != null ? party.getName().toString() : it.toString();
+        });
+    }
+
+    private static void merge(Map<String, BigDecimal> into, Map<String, BigDecimal> from) {
+        from.forEach((holder, balance) -> into.merge(holder, balance, BigDecimal::add));
+    }
+
+    private static void writeReport(List<Discrepancy> discrepancies, String path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8)) {
+            writer.write("holder,expected,actual,difference");
+            writer.newLine();
+            for (Discrepancy discrepancy : discrepancies) {
+                writer.write(String.format("\"%s\",%s,%s,%s", discrepancy.holder,
+                        discrepancy.expected.toPlainString(), discrepancy.actual.toPlainString(),
+                        discrepancy.actual.subtract(discrepancy.expected).toPlainString()));
+                writer.newLine();
+            }
+        }
+        logger.info("Wrote {} discrepancies to {}.", discrepancies.size(), path);
+    }
+
+    public static class Discrepancy {
+        private final String holder;
+        private final BigDecimal expected;
+        private final BigDecimal actual;
+
+        public Discrepancy(String holder, BigDecimal expected, BigDecimal actual) {
+            this.holder = holder;
+            this.expected = expected;
+            this.actual = actual;
+        }
+
+        public String getHolder() {
+            return holder;
+        }
+
+        public BigDecimal getExpected() {
+            return expected;
+        }
+
+        public BigDecimal getActual() {
+            return actual;
+        }
+    }
+}
@@ -1,11 +1,18 @@
 package com.template.webserver;
 
-import net.corda.core.messaging.CordaRPCOps;
+import com.template.states.TokenTransaction;
+import net.corda.core.contracts.StateAndRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 /**
  * Define your API endpoints here.
@@ -13,15 +20,58 @@ import org.springframework.web.bind.annotation.RestController;
 @RestController
 @RequestMapping("/") // The paths for HTTP requests are relative to this base path.
 public class Controller {
-    private final CordaRPCOps proxy;
+    private final NodeRPCConnection rpc;
+    private final AtomicBoolean firstRequestServed = new AtomicBoolean();
     private final static Logger logger = LoggerFactory.getLogger(Controller.class);
 
     public Controller(NodeRPCConnection rpc) {
-        this.proxy = rpc.proxy;
+        this.rpc = rpc;
     }
 
     @GetMapping(value = "/templateendpoint", produces = "text/plain")
     private String templateendpoint() {
         return "Define an endpoint here.";
     }
-}
\ No newline at end of file
+
+    // The server is up (whether or not the node is).
+    @GetMapping(value = "/health/live", produces = "text/plain")
+    private String live() {
+        return "UP";
+    }
+
+    // The node is connected and the warm-up is done.
+    @GetMapping(value = "/health/ready", produces = "text/plain")
+    private ResponseEntity<String> ready() {
+        return rpc.isReady() ? ResponseEntity.ok("READY") :
+                ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("NOT READY");
+    }
+
+    @GetMapping(value = "/token-transactions/recent", produces = "application/json")
+    private List<Map<String, Object>> recentTokenTransactions(
+            @RequestParam(value = "page", defaultValue = "1") int page) {
+        long start = System.nanoTime();
+        List<Map<String, Object>> result = rpc.recentTokenTransactions(page).stream()
+                .map(StateAndRef::getState)
+                .map(it -> toJson(it.getData()))
+                .collect(Collectors.toList());
+        if (firstRequestServed.compareAndSet(false, true))
+            logger.info("First request served in {} ms.", (System.nanoTime() - start) / 1_000_000);
+        return result;
+    }
+
+    @ExceptionHandler(NodeRPCConnection.NodeNotReadyException.class)
+    private ResponseEntity<String> nodeNotReady(NodeRPCConnection.NodeNotReadyException ex) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(ex.getMessage());
+    }
+
+    private static Map<String, Object> toJson(TokenTransaction tokenTransaction) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("linearId", tokenTransaction.getLinearId().getId().toString());
+        json.put("timestamp", tokenTransaction.getTimestamp().toString());
+        json.put("type", tokenTransaction.getType());
+        json.put("fromHolder", tokenTransaction.getFromHolder());
+        json.put("toHolder", tokenTransaction.getToHolder());
+        json.put("quantity", tokenTransaction.getQuantity());
+        return json;
+    }
+}
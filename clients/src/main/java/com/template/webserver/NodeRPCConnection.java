@@ -1,22 +1,65 @@
 package com.template.webserver;
 
+import com.template.states.TokenTransaction;
 import net.corda.client.rpc.CordaRPCClient;
 import net.corda.client.rpc.CordaRPCConnection;
+import net.corda.client.rpc.RPCException;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
 import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.NodeInfo;
+import net.corda.core.node.services.NetworkMapCache;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
 import net.corda.core.utilities.NetworkHostAndPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * Wraps an RPC connection to a Corda node.
  *
  * The RPC connection is configured using command line arguments.
+ *
+ * By default the connection opens during startup (i.e. startup fails if the node isn't up), and the server is
+ * ready as soon as it's open; there's no warm-up, so startup isn't held up by it. With "config.rpc.lazy=true"
+ * it opens in the background, retrying until the node is up, so the server starts right away; it then warms up
+ * (loads the recent token-transaction pages that "/token-transactions/recent" serves) and only then reports
+ * ready. The node should be the explorer, since that's where token-transactions are recorded.
+ *
+ * Every connection preloads the parties of the network map (kept current from its updates); the recent pages are
+ * cached as they're loaded, and dropped whenever token-transactions are recorded or consumed.
+ * If the connection fails, the server reports not ready, and reconnects (and warms up) in the background.
  */
 @Component
 public class NodeRPCConnection implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(NodeRPCConnection.class);
+
+    private static final Duration FIRST_RETRY_DELAY = Duration.ofSeconds(1);
+    private static final Duration MAX_RETRY_DELAY = Duration.ofSeconds(30);
+    // Token-transactions pages loaded during warm-up.
+    static final int RECENT_PAGE_SIZE = 100;
+    private static final int WARM_UP_PAGES = 5;
+
     // The host of the node we are connecting to.
     @Value("${config.rpc.host}")
     private String host;
@@ -29,20 +72,205 @@ public class NodeRPCConnection implements AutoCloseable {
     // The password for logging into the RPC client.
     @Value("${config.rpc.port}")
     private int rpcPort;
+    // Whether to connect in the background instead of during startup.
+    @Value("${config.rpc.lazy:false}")
+    private boolean lazy;
 
-    private CordaRPCConnection rpcConnection;
-    CordaRPCOps proxy;
+    private final ExecutorService connector = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "node-rpc-connector");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<CordaX500Name, Party> parties = new ConcurrentHashMap<>();
+    // Recent token-transaction pages by page number, up to WARM_UP_PAGES; a page loaded before a clear isn't kept.
+    private final Map<Integer, List<StateAndRef<TokenTransaction>>> recentPages = new ConcurrentHashMap<>();
+    private final AtomicLong recentPagesClears = new AtomicLong();
+    // Set while a connection is being (re-)opened in the background; so a failure starts one reconnect only.
+    private final AtomicBoolean connecting = new AtomicBoolean();
+    private volatile CordaRPCConnection rpcConnection;
+    private volatile CordaRPCOps proxy;
+    private volatile boolean ready;
+    private volatile boolean closed;
 
     @PostConstruct
     public void initialiseNodeRPCConnection() {
+        if (lazy) {
+            connecting.set(true);
+            connector.submit(this::connectWithRetry);
+            return;
+        }
+        connect();
+        markReady("no warm-up");
+    }
+
+    // The proxy; fails if the connection isn't open yet.
+    public CordaRPCOps proxy() {
+        CordaRPCOps current = proxy;
+        if (current == null)
+            throw new NodeNotReadyException();
+        return current;
+    }
+
+    // Connected and warmed up.
+    public boolean isReady() {
+        return ready;
+    }
+
+    // Well-known party by name, cached (null if unknown).
+    public Party party(CordaX500Name name) {
+        return call(() -> parties.computeIfAbsent(name, it -> proxy().wellKnownPartyFromX500Name(it)));
+    }
+
+    // Most recently recorded token-transactions first.
+    public List<StateAndRef<TokenTransaction>> recentTokenTransactions(int pageNumber) {
+        boolean cacheable = pageNumber >= 1 && pageNumber <= WARM_UP_PAGES;
+        List<StateAndRef<TokenTransaction>> cached = cacheable ? recentPages.get(pageNumber) : null;
+        if (cached != null)
+            return cached;
+
+        long clears = recentPagesClears.get();
+        Sort byRecordedTime = new Sort(Collections.singleton(new Sort.SortColumn(
+                new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME), Sort.Direction.DESC)));
+        List<StateAndRef<TokenTransaction>> page = call(() -> proxy().vaultQueryBy(
+                new QueryCriteria.VaultQueryCriteria(), new PageSpecification(pageNumber, RECENT_PAGE_SIZE),
+                byRecordedTime, TokenTransaction.class).getStates());
+        if (cacheable) {
+            synchronized (recentPages) {
+                if (clears == recentPagesClears.get())
+                    recentPages.put(pageNumber, page);
+            }
+        }
+        return page;
+    }
+
+    // RPC failures mean the connection is gone (e.g. the node restarted); reported as not ready.
+    private <T> T call(Supplier<T> rpc) {
+        try {
+            return rpc.get();
+        }
+        catch (RPCException ex) {
+            connectionFailed(rpcConnection, ex);
+            throw new NodeNotReadyException();
+        }
+    }
+
+    private void clearRecentPages() {
+        synchronized (recentPages) {
+            recentPagesClears.incrementAndGet();
+            recentPages.clear();
+        }
+    }
+
+    // Only the first failure of the current connection reconnects; later ones (and those of older ones) are ignored.
+    private void connectionFailed(CordaRPCConnection connection, Throwable ex) {
+        if (closed || connection != rpcConnection || !connecting.compareAndSet(false, true))
+            return;
+        ready = false;
+        logger.warn("Lost the connection to the node at {}:{}, reconnecting: {}", host, rpcPort, ex.getMessage());
+        connector.submit(() -> {
+            disconnect();
+            connectWithRetry();
+        });
+    }
+
+    private void connectWithRetry() {
+        Duration delay = FIRST_RETRY_DELAY;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                connect();
+                warmUp();
+                connecting.set(false);
+                return;
+            }
+            catch (Exception ex) {
+                disconnect();
+                logger.warn("Node at {}:{} is not ready, retrying in {} s: {}", host, rpcPort, delay.getSeconds(),
+                        ex.getMessage());
+            }
+            try {
+                Thread.sleep(delay.toMillis());
+            }
+            catch (InterruptedException ex) {
+                return;
+            }
+            delay = delay.multipliedBy(2).compareTo(MAX_RETRY_DELAY) > 0 ? MAX_RETRY_DELAY : delay.multipliedBy(2);
+        }
+    }
+
+    private void connect() {
         NetworkHostAndPort rpcAddress = new NetworkHostAndPort(host, rpcPort);
         CordaRPCClient rpcClient = new CordaRPCClient(rpcAddress);
-        rpcConnection = rpcClient.start(username, password);
-        proxy = rpcConnection.getProxy();
+        CordaRPCConnection connection = rpcClient.start(username, password);
+        rpcConnection = connection;
+        CordaRPCOps ops = connection.getProxy();
+
+        // The feeds fail along with the connection; so they also tell when to reconnect.
+        ops.vaultTrackBy(new QueryCriteria.VaultQueryCriteria(), new PageSpecification(1, 1),
+                new Sort(Collections.emptySet()), TokenTransaction.class).getUpdates()
+                .subscribe(update -> clearRecentPages(), ex -> connectionFailed(connection, ex));
+        DataFeed<List<NodeInfo>, NetworkMapCache.MapChange> networkMap = ops.networkMapFeed();
+        networkMap.getSnapshot().forEach(this::addParties);
+        networkMap.getUpdates().subscribe(change -> {
+            if (change instanceof NetworkMapCache.MapChange.Removed)
+                change.getNode().getLegalIdentities().forEach(party -> parties.remove(party.getName()));
+            else
+                addParties(change.getNode());
+        }, ex -> connectionFailed(connection, ex));
+        proxy = ops;
+    }
+
+    private void addParties(NodeInfo node) {
+        node.getLegalIdentities().forEach(party -> parties.put(party.getName(), party));
+    }
+
+    // Loads what the first requests need (i.e. the recent pages, into the cache); so they don't hit a cold node.
+    private void warmUp() {
+        long start = System.nanoTime();
+        int tokenTransactions = 0;
+        for (int page = 1; page <= WARM_UP_PAGES; page++) {
+            int loaded = recentTokenTransactions(page).size();
+            tokenTransactions += loaded;
+            if (loaded < RECENT_PAGE_SIZE)
+                break;
+        }
+        markReady("warm-up of " + tokenTransactions + " token-transactions took " +
+                (System.nanoTime() - start) / 1_000_000 + " ms, " + parties.size() + " parties preloaded");
+    }
+
+    private void markReady(String detail) {
+        ready = true;
+        logger.info("Ready after {} ms since JVM start ({}).",
+                System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime(), detail);
+    }
+
+    private void disconnect() {
+        ready = false;
+        proxy = null;
+        clearRecentPages();
+        parties.clear();
+        if (rpcConnection != null) {
+            try {
+                rpcConnection.forceClose();
+            }
+            catch (Exception ex) {
+                logger.debug("Failed to close RPC connection.", ex);
+            }
+            rpcConnection = null;
+        }
     }
 
     @PreDestroy
     public void close() {
-        rpcConnection.notifyServerAndClose();
+        closed = true;
+        connector.shutdownNow();
+        if (rpcConnection != null)
+            rpcConnection.notifyServerAndClose();
+    }
+
+    // Reported as "503 Service Unavailable" by the controller.
+    public static class NodeNotReadyException extends RuntimeException {
+        public NodeNotReadyException() {
+            super("Node RPC connection is not ready yet.");
+        }
     }
-}
\ No newline at end of file
+}
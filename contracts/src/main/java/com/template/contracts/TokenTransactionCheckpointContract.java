@@ -0,0 +1,62 @@
+package com.template.contracts;
+
+import com.template.states.TokenTransactionCheckpoint;
+import net.corda.core.contracts.CommandData;
+import net.corda.core.contracts.CommandWithParties;
+import net.corda.core.contracts.Contract;
+import net.corda.core.transactions.LedgerTransaction;
+
+import java.util.List;
+
+import static net.corda.core.contracts.ContractsDSL.requireSingleCommand;
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+// ************
+// * Contract *
+// ************
+public class TokenTransactionCheckpointContract implements Contract {
+    // This is used to identify our contract when building a transaction.
+    public static final String ID = "com.template.contracts.TokenTransactionCheckpointContract";
+
+    @Override
+    public void verify(LedgerTransaction tx) {
+        final CommandWithParties<Commands> command = requireSingleCommand(tx.getCommands(), Commands.class);
+        final List<TokenTransactionCheckpoint> inputs = tx.inputsOfType(TokenTransactionCheckpoint.class);
+        final List<TokenTransactionCheckpoint> outputs = tx.outputsOfType(TokenTransactionCheckpoint.class);
+
+        requireThat(require -> {
+            // Transaction shape constraints.
+            require.using("There should be one output.", outputs.size() == 1);
+            final TokenTransactionCheckpoint output = outputs.get(0);
+
+            if (command.getValue() instanceof Commands.Create) {
+                require.using("There should be no inputs.", inputs.isEmpty());
+            }
+            else if (command.getValue() instanceof Commands.Roll) {
+                require.using("There should be one input.", inputs.size() == 1);
+                final TokenTransactionCheckpoint input = inputs.get(0);
+                require.using("Input and output must belong to the same chain.",
+                        input.getLinearId().equals(output.getLinearId()));
+                require.using("Holder cannot change.", input.getHolder().equals(output.getHolder()));
+                require.using("Explorer cannot change.", input.getExplorer().equals(output.getExplorer()));
+                require.using("Checkpoint must move forward in time.", output.getAsOf().isAfter(input.getAsOf()));
+                require.using("Totals are cumulative and cannot decrease.",
+                        output.getReceived() >= input.getReceived() && output.getSent() >= input.getSent());
+            }
+            else
+                throw new IllegalArgumentException("Unrecognized command.");
+
+            // Transaction signature constraints.
+            require.using("Explorer is a required signer.",
+                    command.getSigners().contains(output.getExplorer().getOwningKey()));
+
+            return null;
+        });
+    }
+
+    // Used to indicate the transaction's intent.
+    public interface Commands extends CommandData {
+        class Create implements Commands {}
+        class Roll implements Commands {}
+    }
+}
@@ -1,14 +1,18 @@
 package com.template.contracts;
 
+import com.template.states.MultiLegTokenTransaction;
 import com.template.states.TokenTransaction;
 import net.corda.core.contracts.CommandData;
 import net.corda.core.contracts.CommandWithParties;
 import net.corda.core.contracts.Contract;
+import net.corda.core.contracts.ContractState;
 import net.corda.core.transactions.LedgerTransaction;
 
+import java.security.PublicKey;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Set;
 
 import static net.corda.core.contracts.ContractsDSL.requireThat;
 import static net.corda.core.contracts.ContractsDSL.select;
@@ -33,18 +37,36 @@ public class TokenTransactionContract implements Contract {
                     Commands.Create.class, Collections.emptyList(), Collections.emptyList());
             require.using("There should be only one command.", tokenTransactionCreateCommands.size() == 1);
 
-            final List<TokenTransaction> tokenTransactionInputs = tx.inputsOfType(TokenTransaction.class);
-            require.using("There should be no inputs.", tokenTransactionInputs.isEmpty());
+            boolean hasInputs = false;
+            for (ContractState input : tx.getInputStates()) {
+                if (input instanceof TokenTransaction || input instanceof MultiLegTokenTransaction) {
+                    hasInputs = true;
+                    break;
+                }
+            }
+            require.using("There should be no inputs.", !hasInputs);
 
-            final List<TokenTransaction> tokenTransactionOutputs = tx.outputsOfType(TokenTransaction.class);
-            require.using("There should be outputs.", !tokenTransactionOutputs.isEmpty());
+            /*
+            * Single pass over the outputs (single-leg and multi-leg token-transactions alike);
+            * leg constraints (at least one leg, quantity, identical holders) are already enforced by the states.
+            * */
+            final Set<PublicKey> explorerKeys = new HashSet<>();
+            boolean hasOutputs = false;
+            for (ContractState output : tx.getOutputStates()) {
+                if (output instanceof TokenTransaction) {
+                    hasOutputs = true;
+                    explorerKeys.add(((TokenTransaction) output).getExplorer().getOwningKey());
+                }
+                else if (output instanceof MultiLegTokenTransaction) {
+                    hasOutputs = true;
+                    explorerKeys.add(((MultiLegTokenTransaction) output).getExplorer().getOwningKey());
+                }
+            }
+            require.using("There should be outputs.", hasOutputs);
 
             // Transaction signature constraints.
             final CommandWithParties<Commands.Create> createCommand = tokenTransactionCreateCommands.get(0);
-            require.using("Explorer is a required signer.", createCommand.getSigners()
-                    .containsAll(tokenTransactionOutputs.stream()
-                            .map(it ->it.getExplorer().getOwningKey())
-                            .collect(Collectors.toList())));
+            require.using("Explorer is a required signer.", createCommand.getSigners().containsAll(explorerKeys));
 
             return null;
         });
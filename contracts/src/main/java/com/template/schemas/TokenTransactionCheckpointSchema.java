@@ -0,0 +1,4 @@
+package com.template.schemas;
+
+public class TokenTransactionCheckpointSchema {
+}
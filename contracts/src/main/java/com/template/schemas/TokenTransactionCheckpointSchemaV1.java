@@ -0,0 +1,75 @@
+package com.template.schemas;
+
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.time.Instant;
+import java.util.Collections;
+
+public class TokenTransactionCheckpointSchemaV1 extends MappedSchema {
+
+    public TokenTransactionCheckpointSchemaV1() {
+        super(TokenTransactionCheckpointSchema.class, 1,
+                Collections.singletonList(PersistentTokenTransactionCheckpoint.class));
+    }
+
+    @Entity
+    @Table(name = "token_transaction_checkpoints",
+            indexes = @Index(name = "token_transaction_checkpoints_holder_idx", columnList = "holder"))
+    public static class PersistentTokenTransactionCheckpoint extends PersistentState {
+        @Column(name = "linear_id") private final String linearId;
+        @Column(name = "explorer") private final String explorer;
+        @Column(name = "holder") private final String holder;
+        @Column(name = "as_of") private final Instant asOf;
+        @Column(name = "received") private final long received;
+        @Column(name = "sent") private final long sent;
+
+        public PersistentTokenTransactionCheckpoint(String linearId, String explorer, String holder,
+                                                    Instant asOf, long received, long sent) {
+            this.linearId = linearId;
+            this.explorer = explorer;
+            this.holder = holder;
+            this.asOf = asOf;
+            this.received = received;
+            this.sent = sent;
+        }
+
+        // Default constructor required by Hibernate.
+        public PersistentTokenTransactionCheckpoint() {
+            this.linearId = null;
+            this.explorer = null;
+            this.holder = null;
+            this.asOf = null;
+            this.received = 0;
+            this.sent = 0;
+        }
+
+        public String getLinearId() {
+            return linearId;
+        }
+
+        public String getExplorer() {
+            return explorer;
+        }
+
+        public String getHolder() {
+            return holder;
+        }
+
+        public Instant getAsOf() {
+            return asOf;
+        }
+
+        public long getReceived() {
+            return received;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import net.corda.core.schemas.PersistentState;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.Index;
 import javax.persistence.Table;
 import java.time.Instant;
 import java.util.Collections;
@@ -15,8 +16,18 @@ public class TokenTransactionSchemaV1 extends MappedSchema {
         super(TokenTransactionSchema.class, 1, Collections.singletonList(PersistentTokenTransaction.class));
     }
 
+    /*
+    * Liquibase changelog (resources/migration) of token_transactions; it adds "idempotency_key" and its index
+    * to tables deployed before them.
+    * */
+    @Override
+    public String getMigrationResource() {
+        return "token-transaction.changelog-master";
+    }
+
     @Entity
-    @Table(name = "token_transactions")
+    @Table(name = "token_transactions",
+            indexes = @Index(name = "token_transactions_idempotency_key_idx", columnList = "idempotency_key"))
     public static class PersistentTokenTransaction extends PersistentState {
         @Column(name = "linear_id") private final String linearId;
         @Column(name = "explorer") private final String explorer;
@@ -25,10 +36,11 @@ public class TokenTransactionSchemaV1 extends MappedSchema {
         @Column(name = "from_holder") private final String fromHolder;
         @Column(name = "to_holder") private final String toHolder;
         @Column(name = "quantity") private final long quantity;
-
+        @Column(name = "idempotency_key") private final String idempotencyKey;
 
         public PersistentTokenTransaction(String linearId, String explorer, Instant timestamp, String type,
-                                          String fromHolder, String toHolder, long quantity) {
+                                          String fromHolder, String toHolder, long quantity,
+                                          String idempotencyKey) {
             this.linearId = linearId;
             this.explorer = explorer;
             this.timestamp = timestamp;
@@ -36,6 +48,7 @@ public class TokenTransactionSchemaV1 extends MappedSchema {
             this.fromHolder = fromHolder;
             this.toHolder = toHolder;
             this.quantity = quantity;
+            this.idempotencyKey = idempotencyKey;
         }
 
         // Default constructor required by Hibernate.
@@ -47,6 +60,7 @@ public class TokenTransactionSchemaV1 extends MappedSchema {
             this.fromHolder = null;
             this.toHolder = null;
             this.quantity = 0;
+            this.idempotencyKey = null;
         }
 
         public String getLinearId() {
@@ -76,5 +90,9 @@ public class TokenTransactionSchemaV1 extends MappedSchema {
         public long getQuantity() {
             return quantity;
         }
+
+        public String getIdempotencyKey() {
+            return idempotencyKey;
+        }
     }
 }
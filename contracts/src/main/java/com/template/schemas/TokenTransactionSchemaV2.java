@@ -0,0 +1,139 @@
+package com.template.schemas;
+
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+
+import javax.persistence.*;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+* Multi-leg token-transactions (see "MultiLegTokenTransaction"): one row per state,
+* and one "token_transaction_legs" row per leg.
+* Single-leg token-transactions still map to V1.
+* */
+public class TokenTransactionSchemaV2 extends MappedSchema {
+
+    public TokenTransactionSchemaV2() {
+        super(TokenTransactionSchema.class, 2,
+                Arrays.asList(PersistentMultiLegTokenTransaction.class, PersistentTokenTransactionLeg.class));
+    }
+
+    @Entity
+    @Table(name = "multi_leg_token_transactions",
+            indexes = @Index(name = "multi_leg_token_transactions_idempotency_key_idx",
+                    columnList = "idempotency_key"))
+    public static class PersistentMultiLegTokenTransaction extends PersistentState {
+        @Column(name = "linear_id") private final String linearId;
+        @Column(name = "explorer") private final String explorer;
+        @Column(name = "timestamp") private final Instant timestamp;
+        @Column(name = "type") private final String type;
+        @Column(name = "idempotency_key") private final String idempotencyKey;
+        @OneToMany(cascade = CascadeType.PERSIST)
+        @JoinColumns({
+                @JoinColumn(name = "transaction_id", referencedColumnName = "transaction_id"),
+                @JoinColumn(name = "output_index", referencedColumnName = "output_index")
+        })
+        @OrderBy("legIndex")
+        private final List<PersistentTokenTransactionLeg> legs;
+
+        public PersistentMultiLegTokenTransaction(String linearId, String explorer, Instant timestamp, String type,
+                                                  String idempotencyKey, List<PersistentTokenTransactionLeg> legs) {
+            this.linearId = linearId;
+            this.explorer = explorer;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.idempotencyKey = idempotencyKey;
+            this.legs = legs;
+        }
+
+        // Default constructor required by Hibernate.
+        public PersistentMultiLegTokenTransaction() {
+            this.linearId = null;
+            this.explorer = null;
+            this.timestamp = null;
+            this.type = null;
+            this.idempotencyKey = null;
+            this.legs = null;
+        }
+
+        public String getLinearId() {
+            return linearId;
+        }
+
+        public String getExplorer() {
+            return explorer;
+        }
+
+        public Instant getTimestamp() {
+            return timestamp;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getIdempotencyKey() {
+            return idempotencyKey;
+        }
+
+        public List<PersistentTokenTransactionLeg> getLegs() {
+            return legs;
+        }
+    }
+
+    // Joined to its token-transaction by (transaction_id, output_index).
+    @Entity
+    @Table(name = "token_transaction_legs",
+            indexes = {
+                    @Index(name = "token_transaction_legs_from_holder_idx", columnList = "from_holder"),
+                    @Index(name = "token_transaction_legs_to_holder_idx", columnList = "to_holder")
+            })
+    public static class PersistentTokenTransactionLeg {
+        @Id
+        @GeneratedValue
+        @Column(name = "leg_id", unique = true, nullable = false) private final Long legId;
+        @Column(name = "leg_index") private final int legIndex;
+        @Column(name = "from_holder") private final String fromHolder;
+        @Column(name = "to_holder") private final String toHolder;
+        @Column(name = "quantity") private final long quantity;
+
+        public PersistentTokenTransactionLeg(int legIndex, String fromHolder, String toHolder, long quantity) {
+            this.legId = null;
+            this.legIndex = legIndex;
+            this.fromHolder = fromHolder;
+            this.toHolder = toHolder;
+            this.quantity = quantity;
+        }
+
+        // Default constructor required by Hibernate.
+        public PersistentTokenTransactionLeg() {
+            this.legId = null;
+            this.legIndex = 0;
+            this.fromHolder = null;
+            this.toHolder = null;
+            this.quantity = 0;
+        }
+
+        public Long getLegId() {
+            return legId;
+        }
+
+        public int getLegIndex() {
+            return legIndex;
+        }
+
+        public String getFromHolder() {
+            return fromHolder;
+        }
+
+        public String getToHolder() {
+            return toHolder;
+        }
+
+        public long getQuantity() {
+            return quantity;
+        }
+    }
+}
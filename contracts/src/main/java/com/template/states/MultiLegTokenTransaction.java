@@ -0,0 +1,191 @@
+package com.template.states;
+
+import com.template.contracts.TokenTransactionContract;
+import com.template.schemas.TokenTransactionSchemaV2;
+import net.corda.core.contracts.BelongsToContract;
+import net.corda.core.contracts.LinearState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import net.corda.core.schemas.QueryableState;
+import net.corda.core.serialization.CordaSerializable;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+// *********
+// * State *
+// *********
+/*
+* Same as "TokenTransaction", but records every leg of a transaction (e.g. a move that pays several recipients)
+* in one state instead of one state per leg.
+* Maps to "multi_leg_token_transactions" and its child table "token_transaction_legs" (see TokenTransactionSchemaV2).
+* */
+@BelongsToContract(TokenTransactionContract.class)
+public class MultiLegTokenTransaction implements LinearState, QueryableState {
+
+    @NotNull
+    private final UniqueIdentifier linearId;
+    @NotNull
+    private final Party explorer;
+    @NotNull
+    private final Instant timestamp;
+    @NotNull
+    private final String type;
+    @NotNull
+    private final List<Leg> legs;
+    private final String idempotencyKey;
+
+    public MultiLegTokenTransaction(@NotNull UniqueIdentifier linearId, @NotNull Party explorer,
+                                    @NotNull Instant timestamp, @NotNull String type,
+                                    @NotNull List<Leg> legs, String idempotencyKey) {
+        if (legs.isEmpty())
+            throw new IllegalStateException("Token-transaction must have at least one leg.");
+
+        this.linearId = linearId;
+        this.explorer = explorer;
+        this.timestamp = timestamp;
+        this.type = type;
+        this.legs = Collections.unmodifiableList(new ArrayList<>(legs));
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    @NotNull
+    @Override
+    public List<AbstractParty> getParticipants() {
+        return Collections.singletonList(explorer);
+    }
+
+    @NotNull
+    @Override
+    public UniqueIdentifier getLinearId() {
+        return linearId;
+    }
+
+    @NotNull
+    @Override
+    public PersistentState generateMappedObject(@NotNull MappedSchema schema) {
+        if (schema instanceof TokenTransactionSchemaV2) {
+            List<TokenTransactionSchemaV2.PersistentTokenTransactionLeg> persistentLegs =
+                    new ArrayList<>(legs.size());
+            for (int i = 0; i < legs.size(); i++) {
+                Leg leg = legs.get(i);
+                persistentLegs.add(new TokenTransactionSchemaV2.PersistentTokenTransactionLeg(
+                        i, leg.getFromHolder(), leg.getToHolder(), leg.getQuantity()));
+            }
+            return new TokenTransactionSchemaV2.PersistentMultiLegTokenTransaction(
+                    this.getLinearId().getId().toString(),
+                    this.getExplorer().getName().toString(),
+                    this.getTimestamp(),
+                    this.getType(),
+                    this.getIdempotencyKey(),
+                    persistentLegs
+            );
+        }
+        else
+            throw new IllegalArgumentException(String.format("Unrecognized schema %s", schema.toString()));
+    }
+
+    @NotNull
+    @Override
+    public Iterable<MappedSchema> supportedSchemas() {
+        return Collections.singletonList(new TokenTransactionSchemaV2());
+    }
+
+    @NotNull
+    public Party getExplorer() {
+        return explorer;
+    }
+
+    @NotNull
+    public Instant getTimestamp() {
+        return timestamp;
+    }
+
+    @NotNull
+    public String getType() {
+        return type;
+    }
+
+    @NotNull
+    public List<Leg> getLegs() {
+        return legs;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        MultiLegTokenTransaction that = (MultiLegTokenTransaction) o;
+        return getLinearId().equals(that.getLinearId()) &&
+                getExplorer().equals(that.getExplorer()) &&
+                getTimestamp().equals(that.getTimestamp()) &&
+                getType().equals(that.getType()) &&
+                getLegs().equals(that.getLegs()) &&
+                Objects.equals(getIdempotencyKey(), that.getIdempotencyKey());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getLinearId(), getExplorer(), getTimestamp(), getType(), getLegs(),
+                getIdempotencyKey());
+    }
+
+    // One "fromHolder" to "toHolder" move (see "TokenTransaction" for the holder and quantity conventions).
+    @CordaSerializable
+    public static class Leg {
+        private final String fromHolder;
+        private final String toHolder;
+        private final long quantity;
+
+        public Leg(String fromHolder, String toHolder, long quantity) {
+            if (quantity < 0)
+                throw new IllegalStateException(
+                        String.format("Quantity cannot be a negative value %d.", quantity));
+            if (Objects.equals(fromHolder, toHolder))
+                throw new IllegalStateException(
+                        String.format("From-holder %s and to-holder %s cannot be identical.", fromHolder, toHolder));
+
+            this.fromHolder = fromHolder;
+            this.toHolder = toHolder;
+            this.quantity = quantity;
+        }
+
+        public String getFromHolder() {
+            return fromHolder;
+        }
+
+        public String getToHolder() {
+            return toHolder;
+        }
+
+        public long getQuantity() {
+            return quantity;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Leg leg = (Leg) o;
+            return getQuantity() == leg.getQuantity() &&
+                    Objects.equals(getFromHolder(), leg.getFromHolder()) &&
+                    Objects.equals(getToHolder(), leg.getToHolder());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(getFromHolder(), getToHolder(), getQuantity());
+        }
+    }
+}
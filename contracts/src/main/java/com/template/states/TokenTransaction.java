@@ -10,6 +10,7 @@ import net.corda.core.identity.Party;
 import net.corda.core.schemas.MappedSchema;
 import net.corda.core.schemas.PersistentState;
 import net.corda.core.schemas.QueryableState;
+import net.corda.core.serialization.ConstructorForDeserialization;
 import org.jetbrains.annotations.NotNull;
 
 import java.time.Instant;
@@ -46,10 +47,22 @@ public class TokenTransaction implements LinearState, QueryableState {
     private final String toHolder;
     // Tokens SDK uses "Amount.quantity" of type "long", so we'll use the same.
     private final long quantity;
+    /*
+    * Client-supplied key of the request that created this token-transaction (optional);
+    * lets the explorer reject retries of the same request.
+    * */
+    private final String idempotencyKey;
 
     public TokenTransaction(@NotNull UniqueIdentifier linearId, @NotNull Party explorer,
                             @NotNull Instant timestamp, @NotNull String type,
                             String fromHolder, String toHolder, long quantity) {
+        this(linearId, explorer, timestamp, type, fromHolder, toHolder, quantity, null);
+    }
+
+    @ConstructorForDeserialization
+    public TokenTransaction(@NotNull UniqueIdentifier linearId, @NotNull Party explorer,
+                            @NotNull Instant timestamp, @NotNull String type,
+                            String fromHolder, String toHolder, long quantity, String idempotencyKey) {
         if (quantity < 0)
             throw new IllegalStateException(
                     String.format("Quantity cannot be a negative value %d.", quantity));
@@ -64,6 +77,7 @@ public class TokenTransaction implements LinearState, QueryableState {
         this.fromHolder = fromHolder;
         this.toHolder = toHolder;
         this.quantity = quantity;
+        this.idempotencyKey = idempotencyKey;
     }
 
     @NotNull
@@ -89,7 +103,8 @@ public class TokenTransaction implements LinearState, QueryableState {
                     this.getType(),
                     this.getFromHolder(),
                     this.getToHolder(),
-                    this.getQuantity()
+                    this.getQuantity(),
+                    this.getIdempotencyKey()
             );
         }
         else
@@ -129,6 +144,10 @@ public class TokenTransaction implements LinearState, QueryableState {
         return quantity;
     }
 
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -140,12 +159,13 @@ public class TokenTransaction implements LinearState, QueryableState {
                 getTimestamp().equals(that.getTimestamp()) &&
                 getType().equals(that.getType()) &&
                 Objects.equals(getFromHolder(), that.getFromHolder()) &&
-                Objects.equals(getToHolder(), that.getToHolder());
+                Objects.equals(getToHolder(), that.getToHolder()) &&
+                Objects.equals(getIdempotencyKey(), that.getIdempotencyKey());
     }
 
     @Override
     public int hashCode() {
         return Objects.hash(getLinearId(), getExplorer(), getTimestamp(), getType(),
-                getFromHolder(), getToHolder(), getQuantity());
+                getFromHolder(), getToHolder(), getQuantity(), getIdempotencyKey());
     }
 }
\ No newline at end of file
@@ -0,0 +1,171 @@
+package com.template.states;
+
+import com.template.contracts.TokenTransactionCheckpointContract;
+import com.template.schemas.TokenTransactionCheckpointSchemaV1;
+import net.corda.core.contracts.*;
+import net.corda.core.flows.FlowLogicRefFactory;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import net.corda.core.schemas.QueryableState;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+// *********
+// * State *
+// *********
+/*
+* Rolls up all token-transactions of one holder recorded up to (and including) "asOf".
+* Each holder has one chain of checkpoints (same linearId); every new checkpoint consumes the previous one,
+* so the latest checkpoint is always the single unconsumed one.
+* Reporting then reads the latest checkpoint and only the token-transactions that are newer than it.
+* */
+@BelongsToContract(TokenTransactionCheckpointContract.class)
+public class TokenTransactionCheckpoint implements LinearState, QueryableState, SchedulableState {
+
+    // Flow that rolls the checkpoint forward; referenced by name since contracts don't depend on workflows.
+    public static final String ROLL_FLOW = "com.template.flows.HolderCheckpoints$Roll";
+    // The roll runs this long after "asOf + interval"; so transactions recorded just before it have committed.
+    public static final Duration SETTLEMENT_LAG = Duration.ofMinutes(1);
+
+    @NotNull
+    private final UniqueIdentifier linearId;
+    @NotNull
+    private final Party explorer;
+    // Same format as "TokenTransaction.fromHolder" and "TokenTransaction.toHolder".
+    @NotNull
+    private final String holder;
+    @NotNull
+    private final Instant asOf;
+    // Cumulative quantity where the holder was "toHolder".
+    private final long received;
+    // Cumulative quantity where the holder was "fromHolder".
+    private final long sent;
+    // How long after "asOf" the next checkpoint is taken.
+    @NotNull
+    private final Duration interval;
+
+    public TokenTransactionCheckpoint(@NotNull UniqueIdentifier linearId, @NotNull Party explorer,
+                                      @NotNull String holder, @NotNull Instant asOf,
+                                      long received, long sent, @NotNull Duration interval) {
+        if (received < 0 || sent < 0)
+            throw new IllegalStateException(
+                    String.format("Totals cannot be negative values (received %d, sent %d).", received, sent));
+        if (interval.isNegative() || interval.isZero())
+            throw new IllegalStateException(String.format("Interval %s must be positive.", interval));
+
+        this.linearId = linearId;
+        this.explorer = explorer;
+        this.holder = holder;
+        this.asOf = asOf;
+        this.received = received;
+        this.sent = sent;
+        this.interval = interval;
+    }
+
+    @NotNull
+    @Override
+    public List<AbstractParty> getParticipants() {
+        return Collections.singletonList(explorer);
+    }
+
+    @NotNull
+    @Override
+    public UniqueIdentifier getLinearId() {
+        return linearId;
+    }
+
+    @Override
+    public ScheduledActivity nextScheduledActivity(@NotNull StateRef thisStateRef,
+                                                   @NotNull FlowLogicRefFactory flowLogicRefFactory) {
+        return new ScheduledActivity(flowLogicRefFactory.create(ROLL_FLOW, thisStateRef), asOf.plus(interval).plus(SETTLEMENT_LAG));
+    }
+
+    @NotNull
+    @Override
+    public PersistentState generateMappedObject(@NotNull MappedSchema schema) {
+        if (schema instanceof TokenTransactionCheckpointSchemaV1) {
+            return new TokenTransactionCheckpointSchemaV1.PersistentTokenTransactionCheckpoint(
+                    this.getLinearId().getId().toString(),
+                    this.getExplorer().getName().toString(),
+                    this.getHolder(),
+                    this.getAsOf(),
+                    this.getReceived(),
+                    this.getSent()
+            );
+        }
+        else
+            throw new IllegalArgumentException(String.format("Unrecognized schema %s", schema.toString()));
+    }
+
+    @NotNull
+    @Override
+    public Iterable<MappedSchema> supportedSchemas() {
+        return Collections.singletonList(new TokenTransactionCheckpointSchemaV1());
+    }
+
+    @NotNull
+    public Party getExplorer() {
+        return explorer;
+    }
+
+    @NotNull
+    public String getHolder() {
+        return holder;
+    }
+
+    @NotNull
+    public Instant getAsOf() {
+        return asOf;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    @NotNull
+    public Duration getInterval() {
+        return interval;
+    }
+
+    // Net quantity held as of "asOf".
+    public long getBalance() {
+        return received - sent;
+    }
+
+    // Next checkpoint in the same chain.
+    public TokenTransactionCheckpoint roll(@NotNull Instant newAsOf, long receivedSince, long sentSince) {
+        return new TokenTransactionCheckpoint(linearId, explorer, holder, newAsOf,
+                received + receivedSince, sent + sentSince, interval);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TokenTransactionCheckpoint that = (TokenTransactionCheckpoint) o;
+        return getReceived() == that.getReceived() &&
+                getSent() == that.getSent() &&
+                getLinearId().equals(that.getLinearId()) &&
+                getExplorer().equals(that.getExplorer()) &&
+                getHolder().equals(that.getHolder()) &&
+                getAsOf().equals(that.getAsOf()) &&
+                getInterval().equals(that.getInterval());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getLinearId(), getExplorer(), getHolder(), getAsOf(),
+                getReceived(), getSent(), getInterval());
+    }
+}
@@ -0,0 +1,100 @@
+package com.template.contracts;
+
+import com.template.states.TokenTransactionCheckpoint;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.node.MockServices;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+
+public class TokenTransactionCheckpointContractTests {
+    static private final MockServices ledgerServices = new MockServices(
+            Collections.singletonList("com.template.contracts"));
+    static private final TestIdentity explorer = new TestIdentity(
+            new CordaX500Name("Explorer", "London", "GB"));
+    static private final TestIdentity alice = new TestIdentity(
+            new CordaX500Name("Alice", "London", "GB"));
+
+    static private final TokenTransactionCheckpoint checkpoint = new TokenTransactionCheckpoint(
+            new UniqueIdentifier(), explorer.getParty(), alice.getParty().getName().toString(),
+            Instant.now(), 100, 40, Duration.ofDays(1));
+
+    @Test
+    public void createMustHaveNoInputs() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                tx.input(TokenTransactionCheckpointContract.ID, checkpoint);
+                tx.output(TokenTransactionCheckpointContract.ID, checkpoint);
+                tx.command(Collections.singletonList(explorer.getPublicKey()),
+                        new TokenTransactionCheckpointContract.Commands.Create());
+                tx.failsWith("There should be no inputs.");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void rollMustMoveForwardInTime() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                tx.input(TokenTransactionCheckpointContract.ID, checkpoint);
+                tx.output(TokenTransactionCheckpointContract.ID, checkpoint.roll(checkpoint.getAsOf(), 0, 0));
+                tx.command(Collections.singletonList(explorer.getPublicKey()),
+                        new TokenTransactionCheckpointContract.Commands.Roll());
+                tx.failsWith("Checkpoint must move forward in time.");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void rollMustKeepTheSameChain() {
+        final TokenTransactionCheckpoint otherChain = new TokenTransactionCheckpoint(new UniqueIdentifier(),
+                explorer.getParty(), checkpoint.getHolder(), checkpoint.getAsOf().plusSeconds(60),
+                checkpoint.getReceived(), checkpoint.getSent(), checkpoint.getInterval());
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                tx.input(TokenTransactionCheckpointContract.ID, checkpoint);
+                tx.output(TokenTransactionCheckpointContract.ID, otherChain);
+                tx.command(Collections.singletonList(explorer.getPublicKey()),
+                        new TokenTransactionCheckpointContract.Commands.Roll());
+                tx.failsWith("Input and output must belong to the same chain.");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void rollMustBeSignedByExplorer() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                tx.input(TokenTransactionCheckpointContract.ID, checkpoint);
+                tx.output(TokenTransactionCheckpointContract.ID,
+                        checkpoint.roll(checkpoint.getAsOf().plusSeconds(60), 10, 5));
+                tx.command(Collections.singletonList(alice.getPublicKey()),
+                        new TokenTransactionCheckpointContract.Commands.Roll());
+                tx.failsWith("Explorer is a required signer.");
+                return null;
+            });
+            ledger.transaction(tx -> {
+                tx.input(TokenTransactionCheckpointContract.ID, checkpoint);
+                tx.output(TokenTransactionCheckpointContract.ID,
+                        checkpoint.roll(checkpoint.getAsOf().plusSeconds(60), 10, 5));
+                tx.command(Collections.singletonList(explorer.getPublicKey()),
+                        new TokenTransactionCheckpointContract.Commands.Roll());
+                tx.verifies();
+                return null;
+            });
+            return null;
+        }));
+    }
+}
@@ -1,5 +1,6 @@
 package com.template.contracts;
 
+import com.template.states.MultiLegTokenTransaction;
 import com.template.states.TokenTransaction;
 import net.corda.core.contracts.UniqueIdentifier;
 import net.corda.core.identity.CordaX500Name;
@@ -10,6 +11,7 @@ import net.corda.testing.node.MockServices;
 import org.junit.Test;
 
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Collections;
 
 import static net.corda.testing.node.NodeTestUtils.ledger;
@@ -30,6 +32,14 @@ public class TokenTransactionContractTests {
             explorer.getParty(), Instant.now(), "MOVE", alice.getParty().getName().toString(),
             bob.getParty().getName().toString(), 10);
 
+    // Bank pays Alice and Bob in one move.
+    static private final MultiLegTokenTransaction multiLegTokenTransaction = new MultiLegTokenTransaction(
+            new UniqueIdentifier(), explorer.getParty(), Instant.now(), "MOVE", Arrays.asList(
+                    new MultiLegTokenTransaction.Leg(bank.getParty().getName().toString(),
+                            alice.getParty().getName().toString(), 10),
+                    new MultiLegTokenTransaction.Leg(bank.getParty().getName().toString(),
+                            bob.getParty().getName().toString(), 20)), null);
+
     @Test
     public void transactionMustIncludeCreateCommand() {
         ledger(ledgerServices, (ledger -> {
@@ -96,4 +106,54 @@ public class TokenTransactionContractTests {
             return null;
         }));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void multiLegTransactionVerifies() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                tx.output(TokenTransactionContract.ID, multiLegTokenTransaction);
+                tx.output(TokenTransactionContract.ID, tokenTransaction);
+                tx.command(Collections.singletonList(explorer.getPublicKey()),
+                        new TokenTransactionContract.Commands.Create());
+                tx.verifies();
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void multiLegTransactionMustHaveNoInputs() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                tx.input(TokenTransactionContract.ID, multiLegTokenTransaction);
+                tx.output(TokenTransactionContract.ID, multiLegTokenTransaction);
+                tx.command(Collections.singletonList(explorer.getPublicKey()),
+                        new TokenTransactionContract.Commands.Create());
+                tx.failsWith("There should be no inputs.");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void explorerMustSignMultiLegTransaction() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                tx.output(TokenTransactionContract.ID, multiLegTokenTransaction);
+                tx.command(Collections.singletonList(alice.getPublicKey()),
+                        new TokenTransactionContract.Commands.Create());
+                tx.failsWith("Explorer is a required signer.");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void multiLegTransactionMustHaveLegs() {
+        new MultiLegTokenTransaction(new UniqueIdentifier(), explorer.getParty(), Instant.now(), "MOVE",
+                Collections.emptyList(), null);
+    }
+}
@@ -0,0 +1,172 @@
+package com.template;
+
+import com.google.common.collect.ImmutableList;
+import com.template.contracts.TokenTransactionContract;
+import com.template.states.MultiLegTokenTransaction;
+import com.template.states.TokenTransaction;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+* Compares one "MultiLegTokenTransaction" with N legs against N single-leg "TokenTransaction"s (the
+* one-state-per-leg approach) in one transaction, for several N:
+*     - storage: serialized transaction bytes, and the rows the explorer's vault writes for it;
+*     - verify time: median and p95 of resolving and verifying the transaction, after a warm-up.
+* */
+public class MultiLegTokenTransactionBenchmark {
+
+    private static final int[] LEG_COUNTS = {1, 5, 20, 100};
+    private static final int WARM_UP_ITERATIONS = 200;
+    private static final int MEASURED_ITERATIONS = 1000;
+    private static final String BANK = "O=Bank,L=London,C=GB";
+
+    private MockNetwork network;
+    private StartedMockNode explorer;
+    private Party explorerParty;
+
+    @Before
+    public void setup() {
+        Map<String, String> tokensWorkflowsConfig = new LinkedHashMap<>();
+        tokensWorkflowsConfig.put("notary", "O=Notary,L=London,C=GB");
+
+        network = new MockNetwork(new MockNetworkParameters(ImmutableList.of(
+                TestCordapp.findCordapp("com.template.contracts"),
+                TestCordapp.findCordapp("com.template.flows"),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.contracts"),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.workflows").withConfig(tokensWorkflowsConfig),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.money")
+        )).withNotarySpecs(Collections.singletonList(
+                new MockNetworkNotarySpec(CordaX500Name.parse("O=Notary,L=London,C=GB"), false))));
+        explorer = network.createPartyNode(CordaX500Name.parse("O=Explorer,L=New York,C=US"));
+        explorerParty = explorer.getInfo().getLegalIdentities().get(0);
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @Test
+    public void storageAndVerifyTime() {
+        for (int legs : LEG_COUNTS) {
+            SignedTransaction perLeg = sign(perLegOutputs(legs));
+            SignedTransaction multiLeg = sign(multiLegOutput(legs));
+
+            record(perLeg);
+            record(multiLeg);
+            long perLegRows = vaultRows(perLeg);
+            long multiLegRows = vaultRows(multiLeg);
+            // One vault_states and one token_transactions row per leg; against one of each plus a row per leg.
+            assertEquals(2L * legs, perLegRows);
+            assertEquals(2L + legs, multiLegRows);
+
+            long[] perLegMicros = verifyMicros(perLeg);
+            long[] multiLegMicros = verifyMicros(multiLeg);
+            System.out.printf("%d legs: one state per leg %d bytes, %d rows, verify median %d µs, p95 %d µs; " +
+                            "multi-leg %d bytes, %d rows, verify median %d µs, p95 %d µs.%n",
+                    legs, perLeg.getTxBits().getSize(), perLegRows, percentile(perLegMicros, 50),
+                    percentile(perLegMicros, 95), multiLeg.getTxBits().getSize(), multiLegRows,
+                    percentile(multiLegMicros, 50), percentile(multiLegMicros, 95));
+        }
+    }
+
+    private static String holder(int i) {
+        return "O=Holder " + i + ",L=London,C=GB";
+    }
+
+    private List<ContractState> perLegOutputs(int legs) {
+        List<ContractState> outputs = new ArrayList<>();
+        Instant now = Instant.now();
+        for (int i = 0; i < legs; i++)
+            outputs.add(new TokenTransaction(new UniqueIdentifier(), explorerParty, now, "ISSUE", BANK, holder(i),
+                    100 + i, "benchmark:" + UUID.randomUUID()));
+        return outputs;
+    }
+
+    private List<ContractState> multiLegOutput(int legs) {
+        List<MultiLegTokenTransaction.Leg> legList = new ArrayList<>();
+        for (int i = 0; i < legs; i++)
+            legList.add(new MultiLegTokenTransaction.Leg(BANK, holder(i), 100 + i));
+        return Collections.singletonList(new MultiLegTokenTransaction(new UniqueIdentifier(), explorerParty,
+                Instant.now(), "ISSUE", legList, "benchmark:" + UUID.randomUUID()));
+    }
+
+    private SignedTransaction sign(List<ContractState> outputs) {
+        TransactionBuilder builder = new TransactionBuilder(network.getDefaultNotaryIdentity());
+        for (ContractState output : outputs)
+            builder.addOutputState(output, TokenTransactionContract.ID);
+        builder.addCommand(new TokenTransactionContract.Commands.Create(), explorerParty.getOwningKey());
+        return explorer.transaction(() -> explorer.getServices().signInitialTransaction(builder));
+    }
+
+    private void record(SignedTransaction signedTx) {
+        explorer.transaction(() -> {
+            explorer.getServices().recordTransactions(signedTx);
+            return null;
+        });
+    }
+
+    private long vaultRows(SignedTransaction signedTx) {
+        return explorer.transaction(() -> {
+            long rows = 0;
+            for (String table : Arrays.asList("vault_states", "token_transactions", "multi_leg_token_transactions",
+                    "token_transaction_legs")) {
+                try (PreparedStatement count = explorer.getServices().jdbcSession().prepareStatement(
+                        "SELECT COUNT(*) FROM " + table + " WHERE transaction_id = ?")) {
+                    count.setString(1, signedTx.getId().toString());
+                    try (ResultSet result = count.executeQuery()) {
+                        result.next();
+                        rows += result.getLong(1);
+                    }
+                }
+                catch (SQLException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+            return rows;
+        });
+    }
+
+    // Resolution into a ledger transaction plus contract verification, as on every node that receives it.
+    private long[] verifyMicros(SignedTransaction signedTx) {
+        long[] micros = new long[MEASURED_ITERATIONS];
+        explorer.transaction(() -> {
+            try {
+                for (int i = 0; i < WARM_UP_ITERATIONS; i++)
+                    signedTx.toLedgerTransaction(explorer.getServices(), false).verify();
+                for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                    long start = System.nanoTime();
+                    signedTx.toLedgerTransaction(explorer.getServices(), false).verify();
+                    micros[i] = (System.nanoTime() - start) / 1000;
+                }
+            }
+            catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+            return null;
+        });
+        Arrays.sort(micros);
+        return micros;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+}
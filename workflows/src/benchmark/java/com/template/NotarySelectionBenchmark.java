@@ -0,0 +1,105 @@
+package com.template;
+
+import com.google.common.collect.ImmutableList;
+import com.template.flows.IssueTokensWithTransaction;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+* Issuance throughput with 1, 2 and 4 notaries, with the LEAST_LOADED notary selection (see "NotarySelector").
+* Nodes run on their own threads (i.e. "threadPerNode"), so notaries work in parallel as they would on a real network.
+* Each run issues WARM_UP_ISSUANCES first, then times ISSUANCES with at most IN_FLIGHT of them running at a time;
+* results are printed as issuances per second, and how many each notary finalized.
+* */
+public class NotarySelectionBenchmark {
+
+    private static final int[] NOTARY_COUNTS = {1, 2, 4};
+    private static final int WARM_UP_ISSUANCES = 50;
+    private static final int ISSUANCES = 500;
+    private static final int IN_FLIGHT = 32;
+    private static final int HOLDERS = 4;
+
+    private MockNetwork network;
+    private StartedMockNode bank;
+    private Party explorerParty;
+    private final List<Party> holders = new ArrayList<>();
+
+    private static CordaX500Name notary(int i) {
+        return CordaX500Name.parse("O=Notary" + i + ",L=London,C=GB");
+    }
+
+    private void startNetwork(int notaries) {
+        Map<String, String> tokensWorkflowsConfig = new LinkedHashMap<>();
+        tokensWorkflowsConfig.put("notary", notary(1).toString());
+        Map<String, String> flowsConfig = new LinkedHashMap<>();
+        flowsConfig.put("notarySelection.strategy", "LEAST_LOADED");
+
+        List<MockNetworkNotarySpec> notarySpecs = new ArrayList<>();
+        for (int i = 1; i <= notaries; i++)
+            notarySpecs.add(new MockNetworkNotarySpec(notary(i), false));
+        network = new MockNetwork(new MockNetworkParameters(ImmutableList.of(
+                TestCordapp.findCordapp("com.template.contracts"),
+                TestCordapp.findCordapp("com.template.flows").withConfig(flowsConfig),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.contracts"),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.workflows").withConfig(tokensWorkflowsConfig),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.money")
+        )).withNotarySpecs(notarySpecs).withThreadPerNode(true));
+
+        bank = network.createPartyNode(CordaX500Name.parse("O=Bank,L=London,C=GB"));
+        explorerParty = network.createPartyNode(CordaX500Name.parse("O=Explorer,L=London,C=GB"))
+                .getInfo().getLegalIdentities().get(0);
+        holders.clear();
+        for (int i = 0; i < HOLDERS; i++)
+            holders.add(network.createPartyNode(CordaX500Name.parse("O=Holder " + i + ",L=London,C=GB"))
+                    .getInfo().getLegalIdentities().get(0));
+    }
+
+    @After
+    public void tearDown() {
+        if (network != null)
+            network.stopNodes();
+    }
+
+    @Test
+    public void throughputByNotaryCount() throws Exception {
+        for (int notaries : NOTARY_COUNTS) {
+            startNetwork(notaries);
+            issue(WARM_UP_ISSUANCES);
+            long start = System.nanoTime();
+            Map<Party, Integer> byNotary = issue(ISSUANCES);
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+            assertEquals(notaries, byNotary.size());
+
+            System.out.printf("%d notaries: %d issuances in %d ms (%.1f issuances/s); per notary %s.%n",
+                    notaries, ISSUANCES, elapsed.toMillis(), ISSUANCES * 1e9 / elapsed.toNanos(),
+                    byNotary.values());
+            network.stopNodes();
+            network = null;
+        }
+    }
+
+    // Keeps IN_FLIGHT issuances running (oldest first); returns how many each notary finalized.
+    private Map<Party, Integer> issue(int issuances) throws Exception {
+        Map<Party, Integer> byNotary = new LinkedHashMap<>();
+        Deque<CordaFuture<SignedTransaction>> inFlight = new ArrayDeque<>();
+        for (int i = 0; i < issuances; i++) {
+            if (inFlight.size() == IN_FLIGHT)
+                byNotary.merge(inFlight.removeFirst().get().getNotary(), 1, Integer::sum);
+            inFlight.addLast(bank.startFlow(new IssueTokensWithTransaction.Initiator(
+                    holders.get(i % HOLDERS), 10, explorerParty)));
+        }
+        while (!inFlight.isEmpty())
+            byNotary.merge(inFlight.removeFirst().get().getNotary(), 1, Integer::sum);
+        return byNotary;
+    }
+}
@@ -0,0 +1,217 @@
+package com.template;
+
+import com.google.common.collect.ImmutableList;
+import com.template.contracts.TokenTransactionContract;
+import com.template.flows.TokenTransactionIndex;
+import com.template.schemas.TokenTransactionSchemaV1;
+import com.template.states.TokenTransaction;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.FieldInfo;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteria.VaultCustomQueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.LongSupplier;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.getField;
+import static org.junit.Assert.assertEquals;
+
+/*
+* Compares "TokenTransactionIndex" with the equivalent VaultCustomQueryCriteria aggregates on the explorer,
+* over ROWS token-transactions spread across HOLDERS holders and a year of timestamps.
+* Rows are recorded straight into the explorer's vault (i.e. without flows), so loading doesn't dominate the run.
+* The index loads when the node starts, i.e. before the rows are recorded; so the warm-up of each query also catches
+* the index up with them. Each query is then timed; results are printed as median and p95.
+* */
+public class TokenTransactionIndexBenchmark {
+
+    private static final int ROWS = 200_000;
+    private static final int ROWS_PER_TRANSACTION = 1000;
+    private static final int HOLDERS = 1000;
+    private static final int PAGE_SIZE = 1000;
+    private static final int WARM_UP_ITERATIONS = 20;
+    private static final int MEASURED_ITERATIONS = 100;
+    private static final Instant START = Instant.parse("2020-01-01T00:00:00Z");
+    private static final String[] TYPES = {"ISSUE", "MOVE", "REDEEM"};
+
+    private MockNetwork network;
+    private StartedMockNode explorer;
+    private Party explorerParty;
+
+    @Before
+    public void setup() throws Exception {
+        Map<String, String> tokensWorkflowsConfig = new LinkedHashMap<>();
+        tokensWorkflowsConfig.put("notary", "O=Notary,L=London,C=GB");
+        Map<String, String> flowsConfig = new LinkedHashMap<>();
+        flowsConfig.put("index.snapshotFile", Files.createTempDirectory("token-transactions-index")
+                .resolve("index.snapshot").toString());
+        // No snapshots during the run.
+        flowsConfig.put("index.snapshotEvery", String.valueOf(Integer.MAX_VALUE));
+
+        network = new MockNetwork(new MockNetworkParameters(ImmutableList.of(
+                TestCordapp.findCordapp("com.template.contracts"),
+                TestCordapp.findCordapp("com.template.flows").withConfig(flowsConfig),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.contracts"),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.workflows").withConfig(tokensWorkflowsConfig),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.money")
+        )).withNotarySpecs(Collections.singletonList(
+                new MockNetworkNotarySpec(CordaX500Name.parse("O=Notary,L=London,C=GB"), false))));
+        explorer = network.createPartyNode(CordaX500Name.parse("O=Explorer,L=London,C=GB"));
+        explorerParty = explorer.getInfo().getLegalIdentities().get(0);
+        network.runNetwork();
+
+        record();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private static String holder(int i) {
+        return "O=Holder " + i + ",L=London,C=GB";
+    }
+
+    // Same seed every run, so runs are comparable.
+    private void record() {
+        Random random = new Random(42);
+        long yearMillis = Duration.ofDays(365).toMillis();
+        long start = System.nanoTime();
+        for (int recorded = 0; recorded < ROWS; recorded += ROWS_PER_TRANSACTION) {
+            TransactionBuilder builder = new TransactionBuilder(network.getDefaultNotaryIdentity());
+            for (int i = 0; i < ROWS_PER_TRANSACTION; i++) {
+                String type = TYPES[random.nextInt(TYPES.length)];
+                String from = type.equals("ISSUE") ? "O=Bank,L=London,C=GB" : holder(random.nextInt(HOLDERS));
+                String to = type.equals("REDEEM") ? "O=Bank,L=London,C=GB" : holder(random.nextInt(HOLDERS));
+                builder.addOutputState(new TokenTransaction(new UniqueIdentifier(), explorerParty,
+                        START.plusMillis((long) (random.nextDouble() * yearMillis)), type, from, to,
+                        1 + random.nextInt(1000)), TokenTransactionContract.ID);
+            }
+            builder.addCommand(new TokenTransactionContract.Commands.Create(), explorerParty.getOwningKey());
+            explorer.transaction(() -> {
+                SignedTransaction signedTx = explorer.getServices().signInitialTransaction(builder);
+                explorer.getServices().recordTransactions(signedTx);
+                return null;
+            });
+        }
+        System.out.printf("Recorded %d token-transactions in %d s.%n", ROWS,
+                Duration.ofNanos(System.nanoTime() - start).getSeconds());
+    }
+
+    @Test
+    public void sumOfOneHolder() {
+        String holder = holder(7);
+        FieldInfo quantity = getField("quantity", TokenTransactionSchemaV1.PersistentTokenTransaction.class);
+        FieldInfo toHolder = getField("toHolder", TokenTransactionSchemaV1.PersistentTokenTransaction.class);
+        QueryCriteria criteria = new VaultCustomQueryCriteria(Builder.equal(toHolder, holder))
+                .and(new VaultCustomQueryCriteria(Builder.sum(quantity)));
+
+        compare("Sum of one to-holder",
+                () -> ((Number) explorer.getServices().getVaultService()
+                        .queryBy(TokenTransaction.class, criteria).getOtherResults().get(0)).longValue(),
+                () -> index().totals(null, holder, null, null, null).getSum());
+    }
+
+    @Test
+    public void sumByToHolderOfOneMonth() {
+        Instant from = START.plus(Duration.ofDays(90));
+        Instant to = from.plus(Duration.ofDays(30));
+        FieldInfo timestamp = getField("timestamp", TokenTransactionSchemaV1.PersistentTokenTransaction.class);
+        FieldInfo quantity = getField("quantity", TokenTransactionSchemaV1.PersistentTokenTransaction.class);
+        FieldInfo toHolder = getField("toHolder", TokenTransactionSchemaV1.PersistentTokenTransaction.class);
+        QueryCriteria criteria = new VaultCustomQueryCriteria(Builder.greaterThanOrEqual(timestamp, from))
+                .and(new VaultCustomQueryCriteria(Builder.lessThan(timestamp, to)))
+                .and(new VaultCustomQueryCriteria(Builder.sum(quantity, Collections.singletonList(toHolder))));
+
+        Sort byToHolder = new Sort(Collections.singletonList(new Sort.SortColumn(new SortAttribute.Custom(
+                TokenTransactionSchemaV1.PersistentTokenTransaction.class, "toHolder"), Sort.Direction.ASC)));
+
+        // Compared by the total over all holders. There are more groups than the vault's default page allows.
+        compare("Sum by to-holder of one month",
+                () -> {
+                    long total = 0;
+                    for (int page = 1; ; page++) {
+                        List<Object> results = explorer.getServices().getVaultService()
+                                .queryBy(TokenTransaction.class, criteria, new PageSpecification(page, PAGE_SIZE),
+                                        byToHolder).getOtherResults();
+                        // Results come as [sum, to-holder] pairs.
+                        for (int i = 0; i < results.size(); i += 2)
+                            total += ((Number) results.get(i)).longValue();
+                        if (results.size() < 2 * PAGE_SIZE)
+                            return total;
+                    }
+                },
+                () -> index().sumByToHolder(null, from, to).values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    private TokenTransactionIndex index() {
+        return explorer.getServices().cordaService(TokenTransactionIndex.class);
+    }
+
+    private void compare(String name, LongSupplier vault, IndexQuery index) {
+        assertEquals(run(vault::getAsLong, WARM_UP_ITERATIONS).result, run(index, WARM_UP_ITERATIONS).result);
+        Timings vaultTimings = run(vault::getAsLong, MEASURED_ITERATIONS);
+        Timings indexTimings = run(index, MEASURED_ITERATIONS);
+        assertEquals(vaultTimings.result, indexTimings.result);
+        System.out.printf("%s over %d rows: vault median %d µs, p95 %d µs; index median %d µs, p95 %d µs.%n",
+                name, ROWS, vaultTimings.percentile(50), vaultTimings.percentile(95),
+                indexTimings.percentile(50), indexTimings.percentile(95));
+    }
+
+    // Each iteration in its own database transaction, like a flow; only the query itself is timed.
+    private Timings run(IndexQuery query, int iterations) {
+        long[] micros = new long[iterations];
+        long[] result = new long[1];
+        for (int i = 0; i < iterations; i++) {
+            int iteration = i;
+            explorer.transaction(() -> {
+                long start = System.nanoTime();
+                try {
+                    result[0] = query.getAsLong();
+                }
+                catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+                micros[iteration] = (System.nanoTime() - start) / 1000;
+                return null;
+            });
+        }
+        return new Timings(micros, result[0]);
+    }
+
+    // Index queries throw checked exceptions.
+    private interface IndexQuery {
+        long getAsLong() throws Exception;
+    }
+
+    private static class Timings {
+
+        private final long[] micros;
+        private final long result;
+
+        private Timings(long[] micros, long result) {
+            this.micros = micros;
+            this.result = result;
+            Arrays.sort(micros);
+        }
+
+        private long percentile(int percentile) {
+            return micros[Math.min(micros.length - 1, micros.length * percentile / 100)];
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.List;
+
+/*
+* Explorer-side access to "TokenTransactionArchive".
+* */
+public class ArchivedTokenTransactions {
+
+    /*
+    * Archives one batch (see "TokenTransactionArchive.archive");
+    * run it again until the report says "done".
+    * */
+    @StartableByRPC
+    public static class Archive extends FlowLogic<TokenTransactionArchive.ArchiveReport> {
+
+        private static final int DEFAULT_MAX_ROWS = 10_000;
+
+        private final Instant cutoff;
+        private final int maxRows;
+
+        public Archive(Instant cutoff) {
+            this(cutoff, DEFAULT_MAX_ROWS);
+        }
+
+        public Archive(Instant cutoff, int maxRows) {
+            this.cutoff = cutoff;
+            this.maxRows = maxRows;
+        }
+
+        @Suspendable
+        @Override
+        public TokenTransactionArchive.ArchiveReport call() throws FlowException {
+            try {
+                return getServiceHub().cordaService(TokenTransactionArchive.class).archive(cutoff, maxRows);
+            }
+            catch (IOException | SQLException ex) {
+                throw new FlowException("Failed to archive token-transactions.", ex);
+            }
+        }
+    }
+
+    @StartableByRPC
+    public static class Query extends FlowLogic<List<TokenTransactionRecord>> {
+
+        // Null matches all holders.
+        private final String holder;
+        private final Instant from;
+        private final Instant to;
+
+        public Query(String holder, Instant from, Instant to) {
+            this.holder = holder;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Suspendable
+        @Override
+        public List<TokenTransactionRecord> call() throws FlowException {
+            try {
+                return getServiceHub().cordaService(TokenTransactionArchive.class).query(holder, from, to);
+            }
+            catch (IOException | SQLException ex) {
+                throw new FlowException("Failed to query token-transactions.", ex);
+            }
+        }
+    }
+
+    // Latency of "Query" since the node started.
+    @StartableByRPC
+    public static class QueryStats extends FlowLogic<TokenTransactionArchive.QueryStats> {
+
+        @Suspendable
+        @Override
+        public TokenTransactionArchive.QueryStats call() throws FlowException {
+            return getServiceHub().cordaService(TokenTransactionArchive.class).getQueryStats();
+        }
+    }
+
+    // Sum of quantity of the archived rows by (holder, type); "holderColumn" is "fromHolder" or "toHolder".
+    @StartableByRPC
+    public static class SumByHolderAndType extends FlowLogic<List<TokenTransactionArchive.HolderTypeSum>> {
+
+        private final String holderColumn;
+
+        public SumByHolderAndType(String holderColumn) {
+            this.holderColumn = holderColumn;
+        }
+
+        @Suspendable
+        @Override
+        public List<TokenTransactionArchive.HolderTypeSum> call() throws FlowException {
+            try {
+                return getServiceHub().cordaService(TokenTransactionArchive.class).sumByHolderAndType(holderColumn);
+            }
+            catch (IOException | SQLException ex) {
+                throw new FlowException("Failed to sum archived token-transactions.", ex);
+            }
+        }
+    }
+}
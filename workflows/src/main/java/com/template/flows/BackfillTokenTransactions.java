@@ -0,0 +1,168 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.template.contracts.TokenTransactionContract;
+import com.template.states.TokenTransaction;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import static com.r3.corda.lib.tokens.workflows.utilities.NotaryUtilitiesKt.firstNotary;
+import static com.r3.corda.lib.tokens.workflows.utilities.NotaryUtilitiesKt.getPreferredNotary;
+
+/*
+* Backfills token-transactions for one batch of historical transactions (see "TokenTransactionBackfill");
+* run it on each holder node repeatedly, passing the cursor of the previous report, until the report is done.
+* The explorer reserves the keys of the records first, and only the ones it hasn't seen are sent; so records of a
+* transaction that several holders backfill are written once. Records are written as reporting-only transactions
+* (no inputs, so no notarisation) of up to "STATES_PER_TRANSACTION" token-transactions each, signed by the explorer.
+* */
+@InitiatingFlow
+@StartableByRPC
+public class BackfillTokenTransactions extends FlowLogic<TokenTransactionBackfill.BackfillReport> {
+
+    private static final int STATES_PER_TRANSACTION = 100;
+
+    // Cursor of the previous batch, or null for the first batch.
+    private final String cursor;
+    private final int batchSize;
+    private final Party explorer;
+
+    public BackfillTokenTransactions(String cursor, int batchSize, Party explorer) {
+        this.cursor = cursor;
+        this.batchSize = batchSize;
+        this.explorer = explorer;
+    }
+
+    @Suspendable
+    @Override
+    public TokenTransactionBackfill.BackfillReport call() throws FlowException {
+        TokenTransactionBackfill backfill = getServiceHub().cordaService(TokenTransactionBackfill.class);
+        List<TokenTransactionBackfill.RecordedTransaction> transactions;
+        List<TokenTransaction> records;
+        try {
+            transactions = backfill.nextTransactions(cursor, batchSize);
+            records = backfill.derive(transactions, explorer);
+        }
+        catch (SQLException | ExecutionException | InterruptedException ex) {
+            throw new FlowException("Failed to derive token-transactions.", ex);
+        }
+
+        FlowSession explorerSession = initiateFlow(explorer);
+        List<String> keys = records.stream().map(TokenTransaction::getIdempotencyKey).collect(Collectors.toList());
+        Set<String> reserved = new HashSet<>(explorerSession.sendAndReceive(List.class, keys).unwrap(it -> {
+            if (!keys.containsAll(it))
+                throw new FlowException("Explorer reserved keys that weren't sent.");
+            return (List<String>) it;
+        }));
+        List<TokenTransaction> accepted = records.stream()
+                .filter(it -> reserved.contains(it.getIdempotencyKey())).collect(Collectors.toList());
+        int chunks = (accepted.size() + STATES_PER_TRANSACTION - 1) / STATES_PER_TRANSACTION;
+        explorerSession.send(chunks);
+
+        // Get preferred notary from tokens-workflows CorDapp configuration file.
+        Party notary = getPreferredNotary(getServiceHub(), firstNotary());
+        for (int from = 0; from < accepted.size(); from += STATES_PER_TRANSACTION) {
+            TransactionBuilder txBuilder = new TransactionBuilder(notary)
+                    .addCommand(new Command<>(new TokenTransactionContract.Commands.Create(),
+                            Arrays.asList(explorer.getOwningKey(), getOurIdentity().getOwningKey())));
+            for (TokenTransaction record : accepted.subList(from,
+                    Math.min(from + STATES_PER_TRANSACTION, accepted.size())))
+                txBuilder.addOutputState(record);
+
+            txBuilder.verify(getServiceHub());
+            SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder);
+            SignedTransaction signedTx = subFlow(new CollectSignaturesFlow(partSignedTx,
+                    Collections.singletonList(explorerSession)));
+            subFlow(new FinalityFlow(signedTx, Collections.singletonList(explorerSession)));
+        }
+
+        String nextCursor = transactions.isEmpty() ? cursor :
+                TokenTransactionBackfill.cursorOf(transactions.get(transactions.size() - 1));
+        return new TokenTransactionBackfill.BackfillReport(transactions.size(), accepted.size(), nextCursor,
+                transactions.size() < batchSize);
+    }
+
+    // Explorer side: reserves the keys it hasn't seen, then signs and records the records that carry them.
+    @InitiatedBy(BackfillTokenTransactions.class)
+    public static class Responder extends FlowLogic<Void> {
+
+        private final FlowSession counterPartySession;
+
+        public Responder(FlowSession counterPartySession) {
+            this.counterPartySession = counterPartySession;
+        }
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            IdempotencyKeys idempotencyKeys = getServiceHub().cordaService(IdempotencyKeys.class);
+            List<String> keys = counterPartySession.receive(List.class).unwrap(it -> (List<String>) it);
+            List<String> reserved = new ArrayList<>();
+            try {
+                for (String key : keys) {
+                    if (reserve(idempotencyKeys, key))
+                        reserved.add(key);
+                }
+                counterPartySession.send(reserved);
+                int chunks = counterPartySession.receive(Integer.class).unwrap(it -> it);
+                Set<String> reservedKeys = new HashSet<>(reserved);
+                for (int i = 0; i < chunks; i++) {
+                    SecureHash txId = subFlow(new SignTxFlow(counterPartySession, getOurIdentity(), reservedKeys))
+                            .getId();
+                    subFlow(new ReceiveFinalityFlow(counterPartySession, txId));
+                }
+            }
+            catch (FlowException | RuntimeException ex) {
+                // Recorded keys stay seen; releasing them only drops the reservation.
+                reserved.forEach(idempotencyKeys::release);
+                throw ex;
+            }
+            return null;
+        }
+
+        private static boolean reserve(IdempotencyKeys idempotencyKeys, String key) throws FlowException {
+            try {
+                return idempotencyKeys.reserve(key);
+            }
+            catch (SQLException | IOException ex) {
+                throw new FlowException("Failed to check the backfill record key.", ex);
+            }
+        }
+    }
+
+    private static class SignTxFlow extends SignTransactionFlow {
+
+        private final Party explorer;
+        private final Set<String> reservedKeys;
+
+        private SignTxFlow(FlowSession otherPartyFlow, Party explorer, Set<String> reservedKeys) {
+            super(otherPartyFlow);
+            this.explorer = explorer;
+            this.reservedKeys = reservedKeys;
+        }
+
+        @Override
+        protected void checkTransaction(SignedTransaction stx) throws FlowException {
+            if (!stx.getTx().getInputs().isEmpty())
+                throw new FlowException("Backfill transaction has inputs.");
+            for (ContractState output : stx.getTx().getOutputStates()) {
+                if (!(output instanceof TokenTransaction))
+                    throw new FlowException("Backfill transaction has an output that isn't a token-transaction.");
+                TokenTransaction record = (TokenTransaction) output;
+                if (!explorer.equals(record.getExplorer()) || !reservedKeys.contains(record.getIdempotencyKey()))
+                    throw new FlowException("Token-transaction doesn't carry a reserved backfill key.");
+            }
+        }
+    }
+}
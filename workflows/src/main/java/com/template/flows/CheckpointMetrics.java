@@ -0,0 +1,127 @@
+package com.template.flows;
+
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+* Sizes of the checkpoints that the node writes for our flows.
+* Every suspension (e.g. send, receive, sub-flows that talk to other nodes) serializes the flow's fiber stack
+* into the node's checkpoints table; flows call "record" after their suspension points, which reads the size of
+* the flow's latest checkpoint. So the count is that of recorded suspension points, and sub-flows that suspend
+* several times contribute their last checkpoint only.
+* Each record is a database query; so it's off unless "checkpointMetrics.enabled" is true (e.g. in tests or
+* while sizing flows), and "CheckpointSizes" reports what was recorded.
+* */
+@CordaService
+public class CheckpointMetrics extends SingletonSerializeAsToken {
+
+    private static final Logger logger = LoggerFactory.getLogger(CheckpointMetrics.class);
+
+    static final String ENABLED_CONFIG = "checkpointMetrics.enabled";
+
+    private final AppServiceHub serviceHub;
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    private final boolean enabled;
+
+    public CheckpointMetrics(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.enabled = config.exists(ENABLED_CONFIG) && config.getBoolean(ENABLED_CONFIG);
+    }
+
+    // Must be called from within the flow, right after a suspension point; does nothing unless enabled.
+    public void record(FlowLogic<?> flow, String suspensionPoint) {
+        if (!enabled)
+            return;
+        long bytes;
+        try (PreparedStatement select = serviceHub.jdbcSession().prepareStatement(
+                "SELECT LENGTH(checkpoint_value) FROM node_checkpoints WHERE checkpoint_id = ?")) {
+            select.setString(1, flow.getRunId().getUuid().toString());
+            try (ResultSet result = select.executeQuery()) {
+                if (!result.next())
+                    return;
+                bytes = result.getLong(1);
+            }
+        }
+        catch (SQLException ex) {
+            // Metrics must never fail the flow.
+            logger.warn("Failed to read checkpoint size.", ex);
+            return;
+        }
+
+        stats.computeIfAbsent(flow.getClass().getName(), it -> new Stats()).add(bytes);
+        logger.debug("{} checkpoint after {}: {} bytes.", flow.getClass().getSimpleName(), suspensionPoint, bytes);
+    }
+
+    public Snapshot get(Class<?> flowClass) {
+        return get(flowClass.getName());
+    }
+
+    public Snapshot get(String flowClassName) {
+        Stats flowStats = stats.get(flowClassName);
+        return flowStats == null ? new Snapshot(0, 0, 0, 0) : flowStats.snapshot();
+    }
+
+    private static class Stats {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalBytes = new AtomicLong();
+        private final AtomicLong minBytes = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong maxBytes = new AtomicLong();
+
+        private void add(long bytes) {
+            count.incrementAndGet();
+            totalBytes.addAndGet(bytes);
+            minBytes.accumulateAndGet(bytes, Math::min);
+            maxBytes.accumulateAndGet(bytes, Math::max);
+        }
+
+        private Snapshot snapshot() {
+            return new Snapshot(count.get(), totalBytes.get(), minBytes.get(), maxBytes.get());
+        }
+    }
+
+    @CordaSerializable
+    public static class Snapshot {
+
+        private final long count;
+        private final long totalBytes;
+        private final long minBytes;
+        private final long maxBytes;
+
+        public Snapshot(long count, long totalBytes, long minBytes, long maxBytes) {
+            this.count = count;
+            this.totalBytes = totalBytes;
+            this.minBytes = minBytes;
+            this.maxBytes = maxBytes;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public long getMinBytes() {
+            return minBytes;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+
+/*
+* Checkpoint sizes recorded for a flow class since the node started (see "CheckpointMetrics");
+* all zero unless "checkpointMetrics.enabled" is true.
+* */
+@StartableByRPC
+public class CheckpointSizes extends FlowLogic<CheckpointMetrics.Snapshot> {
+
+    private final String flowClassName;
+
+    public CheckpointSizes(String flowClassName) {
+        this.flowClassName = flowClassName;
+    }
+
+    @Suspendable
+    @Override
+    public CheckpointMetrics.Snapshot call() throws FlowException {
+        return getServiceHub().cordaService(CheckpointMetrics.class).get(flowClassName);
+    }
+}
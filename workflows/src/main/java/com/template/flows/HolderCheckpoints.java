@@ -0,0 +1,256 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.template.contracts.TokenTransactionCheckpointContract;
+import com.template.schemas.TokenTransactionCheckpointSchemaV1;
+import com.template.schemas.TokenTransactionSchemaV1;
+import com.template.states.TokenTransaction;
+import com.template.states.TokenTransactionCheckpoint;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.BinaryComparisonOperator;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.ColumnPredicate;
+import net.corda.core.node.services.vault.FieldInfo;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteria.VaultCustomQueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+
+import static com.r3.corda.lib.tokens.workflows.utilities.NotaryUtilitiesKt.firstNotary;
+import static com.r3.corda.lib.tokens.workflows.utilities.NotaryUtilitiesKt.getPreferredNotary;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.getField;
+
+/*
+* Per-holder checkpoints of token-transaction totals; all flows run on the explorer node.
+* "Create" starts a holder's chain, after which each checkpoint schedules "Roll" for the next one.
+* "Totals" answers "received/sent by holder X" from the latest checkpoint plus the newer token-transactions only;
+* so its cost is bounded by the checkpoint interval instead of the whole history.
+* Token-transactions are matched by the time the explorer recorded them, not by their own "timestamp";
+* so ones that arrive late (e.g. issuances still being finalized at roll time, or backfilled history) are
+* counted by the next checkpoint instead of being skipped.
+* Legs of multi-leg token-transactions (token_transaction_legs) are counted like single-leg token-transactions.
+* "TokenTransactionArchive" only archives rows that both holders' latest checkpoints already cover; so the
+* rows that "Roll" and "Totals" sum are always in the live table.
+* */
+public class HolderCheckpoints {
+
+    @StartableByRPC
+    public static class Create extends FlowLogic<SignedTransaction> {
+
+        private final String holder;
+        private final Duration interval;
+
+        public Create(String holder, Duration interval) {
+            this.holder = holder;
+            this.interval = interval;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            if (latestCheckpoint(getServiceHub(), holder) != null)
+                throw new FlowException(String.format("Holder %s already has a checkpoint.", holder));
+
+            Instant asOf = Instant.now();
+            TokenTransactionCheckpoint checkpoint = new TokenTransactionCheckpoint(new UniqueIdentifier(),
+                    getOurIdentity(), holder, asOf,
+                    sumQuantity(getServiceHub(), "toHolder", holder, null, asOf),
+                    sumQuantity(getServiceHub(), "fromHolder", holder, null, asOf),
+                    interval);
+
+            // Get preferred notary from tokens-workflows CorDapp configuration file.
+            Party notary = getPreferredNotary(getServiceHub(), firstNotary());
+            TransactionBuilder txBuilder = new TransactionBuilder(notary)
+                    .addCommand(new Command<>(new TokenTransactionCheckpointContract.Commands.Create(),
+                            Collections.singletonList(getOurIdentity().getOwningKey())))
+                    .addOutputState(checkpoint);
+
+            return signAndFinalise(this, txBuilder);
+        }
+    }
+
+    @SchedulableFlow
+    public static class Roll extends FlowLogic<SignedTransaction> {
+
+        private final StateRef previousRef;
+
+        public Roll(StateRef previousRef) {
+            this.previousRef = previousRef;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            StateAndRef<TokenTransactionCheckpoint> previous = getServiceHub().toStateAndRef(previousRef);
+            TokenTransactionCheckpoint previousCheckpoint = previous.getState().getData();
+
+            /*
+            * Roll exactly one interval forward (not to "now"); if the node was down for a while,
+            * the following checkpoints are scheduled immediately and catch up one interval at a time.
+            * */
+            Instant asOf = previousCheckpoint.getAsOf().plus(previousCheckpoint.getInterval());
+            String holder = previousCheckpoint.getHolder();
+            TokenTransactionCheckpoint checkpoint = previousCheckpoint.roll(asOf,
+                    sumQuantity(getServiceHub(), "toHolder", holder, previousCheckpoint.getAsOf(), asOf),
+                    sumQuantity(getServiceHub(), "fromHolder", holder, previousCheckpoint.getAsOf(), asOf));
+
+            // Consumed states must stay with their notary.
+            TransactionBuilder txBuilder = new TransactionBuilder(previous.getState().getNotary())
+                    .addInputState(previous)
+                    .addCommand(new Command<>(new TokenTransactionCheckpointContract.Commands.Roll(),
+                            Collections.singletonList(getOurIdentity().getOwningKey())))
+                    .addOutputState(checkpoint);
+
+            return signAndFinalise(this, txBuilder);
+        }
+    }
+
+    @StartableByRPC
+    public static class Totals extends FlowLogic<HolderTotals> {
+
+        private final String holder;
+
+        public Totals(String holder) {
+            this.holder = holder;
+        }
+
+        @Suspendable
+        @Override
+        public HolderTotals call() throws FlowException {
+            Instant now = Instant.now();
+            StateAndRef<TokenTransactionCheckpoint> latest = latestCheckpoint(getServiceHub(), holder);
+            Instant since = null;
+            long received = 0;
+            long sent = 0;
+            if (latest != null) {
+                TokenTransactionCheckpoint checkpoint = latest.getState().getData();
+                since = checkpoint.getAsOf();
+                received = checkpoint.getReceived();
+                sent = checkpoint.getSent();
+            }
+
+            return new HolderTotals(holder, now,
+                    received + sumQuantity(getServiceHub(), "toHolder", holder, since, now),
+                    sent + sumQuantity(getServiceHub(), "fromHolder", holder, since, now));
+        }
+    }
+
+    @CordaSerializable
+    public static class HolderTotals {
+
+        private final String holder;
+        private final Instant asOf;
+        private final long received;
+        private final long sent;
+
+        public HolderTotals(String holder, Instant asOf, long received, long sent) {
+            this.holder = holder;
+            this.asOf = asOf;
+            this.received = received;
+            this.sent = sent;
+        }
+
+        public String getHolder() {
+            return holder;
+        }
+
+        public Instant getAsOf() {
+            return asOf;
+        }
+
+        public long getReceived() {
+            return received;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        public long getBalance() {
+            return received - sent;
+        }
+    }
+
+    @Suspendable
+    private static SignedTransaction signAndFinalise(FlowLogic<?> flow, TransactionBuilder txBuilder)
+            throws FlowException {
+        txBuilder.verify(flow.getServiceHub());
+        SignedTransaction signedTx = flow.getServiceHub().signInitialTransaction(txBuilder);
+        // Explorer is the only participant; so there's no one to share the transaction with.
+        return flow.subFlow(new FinalityFlow(signedTx, Collections.emptyList()));
+    }
+
+    // Latest (i.e. unconsumed) checkpoint of the holder, or null if the holder has none.
+    static StateAndRef<TokenTransactionCheckpoint> latestCheckpoint(ServiceHub serviceHub, String holder) {
+        FieldInfo holderField = getField("holder",
+                TokenTransactionCheckpointSchemaV1.PersistentTokenTransactionCheckpoint.class);
+        QueryCriteria byHolder = new VaultCustomQueryCriteria(Builder.equal(holderField, holder));
+        List<StateAndRef<TokenTransactionCheckpoint>> checkpoints = serviceHub.getVaultService()
+                .queryBy(TokenTransactionCheckpoint.class, byHolder).getStates();
+        return checkpoints.isEmpty() ? null : checkpoints.get(0);
+    }
+
+    // Sum of quantities where "holderColumn" is the holder and "from" < recorded time <= "to" ("from" is optional).
+    static long sumQuantity(ServiceHub serviceHub, String holderColumn, String holder, Instant from, Instant to)
+            throws FlowException {
+        FieldInfo holderField = getField(holderColumn, TokenTransactionSchemaV1.PersistentTokenTransaction.class);
+        FieldInfo quantity = getField("quantity", TokenTransactionSchemaV1.PersistentTokenTransaction.class);
+
+        QueryCriteria criteria = new VaultCustomQueryCriteria(Builder.equal(holderField, holder))
+                .and(recordedTime(BinaryComparisonOperator.LESS_THAN_OR_EQUAL, to))
+                .and(new VaultCustomQueryCriteria(Builder.sum(quantity)));
+        if (from != null)
+            criteria = criteria.and(recordedTime(BinaryComparisonOperator.GREATER_THAN, from));
+
+        Vault.Page<TokenTransaction> page = serviceHub.getVaultService().queryBy(TokenTransaction.class, criteria);
+        // SUM over no rows is null.
+        Object sum = page.getOtherResults().isEmpty() ? null : page.getOtherResults().get(0);
+        return (sum == null ? 0 : ((Number) sum).longValue()) +
+                sumLegQuantity(serviceHub, holderColumn, holder, from, to);
+    }
+
+    // Same as "sumQuantity" for the legs of multi-leg token-transactions, which have no vault schema of their own.
+    private static long sumLegQuantity(ServiceHub serviceHub, String holderColumn, String holder,
+                                       Instant from, Instant to) throws FlowException {
+        String column = holderColumn.equals("fromHolder") ? "l.from_holder" : "l.to_holder";
+        String sql = "SELECT SUM(l.quantity) FROM token_transaction_legs l JOIN vault_states v " +
+                "ON v.transaction_id = l.transaction_id AND v.output_index = l.output_index " +
+                "WHERE " + column + " = ? AND v.recorded_timestamp <= ?" +
+                (from == null ? "" : " AND v.recorded_timestamp > ?");
+        try (PreparedStatement select = serviceHub.jdbcSession().prepareStatement(sql)) {
+            select.setString(1, holder);
+            select.setTimestamp(2, Timestamp.from(to));
+            if (from != null)
+                select.setTimestamp(3, Timestamp.from(from));
+            try (ResultSet result = select.executeQuery()) {
+                result.next();
+                return result.getLong(1);
+            }
+        }
+        catch (SQLException ex) {
+            throw new FlowException("Failed to sum token-transaction legs of " + holder + ".", ex);
+        }
+    }
+
+    private static QueryCriteria recordedTime(BinaryComparisonOperator operator, Instant instant) {
+        return new QueryCriteria.VaultQueryCriteria().withTimeCondition(new QueryCriteria.TimeCondition(
+                QueryCriteria.TimeInstantType.RECORDED, new ColumnPredicate.BinaryComparison<>(operator, instant)));
+    }
+}
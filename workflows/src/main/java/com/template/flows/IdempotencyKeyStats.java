@@ -0,0 +1,20 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+
+/*
+* Explorer-side statistics of the issuance duplicate check (see "IdempotencyKeys"),
+* i.e. the measured bloom filter false-positive rate and lookup latency since the node started.
+* */
+@StartableByRPC
+public class IdempotencyKeyStats extends FlowLogic<IdempotencyKeys.Stats> {
+
+    @Suspendable
+    @Override
+    public IdempotencyKeys.Stats call() throws FlowException {
+        return getServiceHub().cordaService(IdempotencyKeys.class).getStats();
+    }
+}
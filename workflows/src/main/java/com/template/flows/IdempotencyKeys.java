@@ -0,0 +1,288 @@
+package com.template.flows;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.template.states.MultiLegTokenTransaction;
+import com.template.states.TokenTransaction;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+* Explorer-side duplicate check of issuance idempotency keys (see "TokenTransaction.idempotencyKey").
+*     1. Recently seen keys (LRU) are duplicates without touching the database.
+*     2. Keys that the bloom filter has never seen are new without touching the database.
+*     3. Only what's left (i.e. old keys and bloom false positives) is looked up in token_transactions
+*        (and multi_leg_token_transactions).
+*     4. Keys not found there are looked up in the archive's segments (see "TokenTransactionArchive"), but only
+*        if a second bloom filter of archived keys might contain them.
+* The bloom filters are loaded from both tables and the segments on first use, and kept current through vault
+* updates and archive runs.
+*
+* Keys of requests that are still being signed or finalized aren't in any of the above yet; so the explorer
+* reserves them ("reserve") until the token-transaction is recorded, or releases them if the request fails.
+* */
+@CordaService
+public class IdempotencyKeys extends SingletonSerializeAsToken {
+
+    private static final Logger logger = LoggerFactory.getLogger(IdempotencyKeys.class);
+
+    static final String EXPECTED_KEYS_CONFIG = "idempotency.expectedKeys";
+    static final String RECENT_KEYS_CONFIG = "idempotency.recentKeys";
+    private static final int DEFAULT_EXPECTED_KEYS = 1_000_000;
+    private static final int DEFAULT_RECENT_KEYS = 10_000;
+    // Target false-positive probability of the bloom filter at "expectedKeys" insertions.
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    private final AppServiceHub serviceHub;
+    private volatile BloomFilter<String> seenKeys;
+    private volatile BloomFilter<String> archivedKeys;
+    private volatile Map<String, Boolean> recentKeys;
+    // Keys produced before the bloom filter is loaded; queued and drained under "keysLock".
+    private final Queue<String> pendingKeys = new ConcurrentLinkedQueue<>();
+    private final Object keysLock = new Object();
+    // Keys of requests that passed the check but aren't recorded yet.
+    private final Set<String> inFlightKeys = ConcurrentHashMap.newKeySet();
+
+    // Statistics, to report the measured false-positive rate and lookup latency.
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong lookupNanos = new AtomicLong();
+    private final AtomicLong databaseLookups = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    public IdempotencyKeys(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        // After commit; so keys of rolled back transactions never count as seen.
+        serviceHub.getVaultService().getUpdates().subscribe(update ->
+                update.getProduced().forEach(it -> {
+                    if (it.getState().getData() instanceof TokenTransaction)
+                        add(((TokenTransaction) it.getState().getData()).getIdempotencyKey());
+                    else if (it.getState().getData() instanceof MultiLegTokenTransaction)
+                        add(((MultiLegTokenTransaction) it.getState().getData()).getIdempotencyKey());
+                }));
+    }
+
+    /*
+    * Atomic check-and-reserve; false if the key is a duplicate (recorded, or reserved by a request in flight).
+    * The key is reserved first, so a request that gets recorded meanwhile is seen by the check.
+    * Must be called from within a flow (i.e. a database transaction).
+    * */
+    public boolean reserve(String key) throws SQLException, IOException {
+        if (!inFlightKeys.add(key))
+            return false;
+        boolean duplicate;
+        try {
+            duplicate = isDuplicate(key);
+        }
+        catch (SQLException | IOException | RuntimeException ex) {
+            inFlightKeys.remove(key);
+            throw ex;
+        }
+        if (duplicate)
+            inFlightKeys.remove(key);
+        return !duplicate;
+    }
+
+    // Releases a key reserved by a request that failed (recorded keys are released once committed).
+    public void release(String key) {
+        inFlightKeys.remove(key);
+    }
+
+    // Must be called from within a flow (i.e. a database transaction).
+    public boolean isDuplicate(String key) throws SQLException, IOException {
+        long start = System.nanoTime();
+        try {
+            initialise();
+            if (recentKeys.containsKey(key))
+                return true;
+            if (!seenKeys.mightContain(key))
+                return false;
+
+            databaseLookups.incrementAndGet();
+            try (PreparedStatement select = serviceHub.jdbcSession().prepareStatement(
+                    "SELECT 1 FROM token_transactions WHERE idempotency_key = ? " +
+                    "UNION ALL SELECT 1 FROM multi_leg_token_transactions WHERE idempotency_key = ?")) {
+                select.setString(1, key);
+                select.setString(2, key);
+                try (ResultSet result = select.executeQuery()) {
+                    if (result.next()) {
+                        recentKeys.put(key, Boolean.TRUE);
+                        return true;
+                    }
+                }
+            }
+            if (archivedKeys.mightContain(key) &&
+                    serviceHub.cordaService(TokenTransactionArchive.class).containsKey(key)) {
+                recentKeys.put(key, Boolean.TRUE);
+                return true;
+            }
+            falsePositives.incrementAndGet();
+            return false;
+        }
+        finally {
+            lookups.incrementAndGet();
+            lookupNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    // Reported by the "IdempotencyKeyStats" flow.
+    public Stats getStats() {
+        return new Stats(lookups.get(), databaseLookups.get(), getFalsePositiveRate(), getDatabaseSkipRate(),
+                getAverageLookupMicros());
+    }
+
+    // Share of database lookups that found nothing (i.e. bloom false positives).
+    public double getFalsePositiveRate() {
+        long total = databaseLookups.get();
+        return total == 0 ? 0 : (double) falsePositives.get() / total;
+    }
+
+    // Share of all lookups that didn't need the database.
+    public double getDatabaseSkipRate() {
+        long total = lookups.get();
+        return total == 0 ? 0 : 1 - (double) databaseLookups.get() / total;
+    }
+
+    public double getAverageLookupMicros() {
+        long total = lookups.get();
+        return total == 0 ? 0 : lookupNanos.get() / 1000.0 / total;
+    }
+
+    // Called by "TokenTransactionArchive" for the keys of the rows it archives.
+    public void archived(String key) {
+        if (key != null && archivedKeys != null)
+            archivedKeys.put(key);
+    }
+
+    private void add(String key) {
+        if (key == null)
+            return;
+        // Under the lock "initialise" publishes the filters with; so a queued key is always drained.
+        synchronized (keysLock) {
+            if (seenKeys == null) {
+                pendingKeys.add(key);
+                inFlightKeys.remove(key);
+                return;
+            }
+            seenKeys.put(key);
+            recentKeys.put(key, Boolean.TRUE);
+        }
+        // Only now, so that a retry sees the recorded key.
+        inFlightKeys.remove(key);
+    }
+
+    private synchronized void initialise() throws SQLException, IOException {
+        if (seenKeys != null)
+            return;
+
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        int expectedKeys = config.exists(EXPECTED_KEYS_CONFIG) ?
+                config.getInt(EXPECTED_KEYS_CONFIG) : DEFAULT_EXPECTED_KEYS;
+        int capacity = config.exists(RECENT_KEYS_CONFIG) ? config.getInt(RECENT_KEYS_CONFIG) : DEFAULT_RECENT_KEYS;
+
+        BloomFilter<String> bloomFilter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+                expectedKeys, FALSE_POSITIVE_PROBABILITY);
+        long loaded = 0;
+        try (PreparedStatement select = serviceHub.jdbcSession().prepareStatement(
+                "SELECT idempotency_key FROM token_transactions WHERE idempotency_key IS NOT NULL " +
+                "UNION ALL SELECT idempotency_key FROM multi_leg_token_transactions " +
+                "WHERE idempotency_key IS NOT NULL")) {
+            try (ResultSet keys = select.executeQuery()) {
+                while (keys.next()) {
+                    bloomFilter.put(keys.getString(1));
+                    loaded++;
+                }
+            }
+        }
+
+        BloomFilter<String> archivedBloomFilter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+                expectedKeys, FALSE_POSITIVE_PROBABILITY);
+        long[] archived = {0};
+        serviceHub.cordaService(TokenTransactionArchive.class).forEachArchived(record -> {
+            if (record.getIdempotencyKey() != null) {
+                bloomFilter.put(record.getIdempotencyKey());
+                archivedBloomFilter.put(record.getIdempotencyKey());
+                archived[0]++;
+            }
+        });
+
+        recentKeys = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        });
+        archivedKeys = archivedBloomFilter;
+        synchronized (keysLock) {
+            seenKeys = bloomFilter;
+            for (String key = pendingKeys.poll(); key != null; key = pendingKeys.poll())
+                add(key);
+        }
+        logger.info("Loaded {} idempotency keys ({} archived); expected false-positive probability {}.",
+                loaded + archived[0], archived[0], bloomFilter.expectedFpp());
+    }
+
+    @CordaSerializable
+    public static class Stats {
+
+        private final long lookups;
+        private final long databaseLookups;
+        private final double falsePositiveRate;
+        private final double databaseSkipRate;
+        private final double averageLookupMicros;
+
+        public Stats(long lookups, long databaseLookups, double falsePositiveRate, double databaseSkipRate,
+                     double averageLookupMicros) {
+            this.lookups = lookups;
+            this.databaseLookups = databaseLookups;
+            this.falsePositiveRate = falsePositiveRate;
+            this.databaseSkipRate = databaseSkipRate;
+            this.averageLookupMicros = averageLookupMicros;
+        }
+
+        public long getLookups() {
+            return lookups;
+        }
+
+        public long getDatabaseLookups() {
+            return databaseLookups;
+        }
+
+        public double getFalsePositiveRate() {
+            return falsePositiveRate;
+        }
+
+        public double getDatabaseSkipRate() {
+            return databaseSkipRate;
+        }
+
+        public double getAverageLookupMicros() {
+            return averageLookupMicros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d lookups (%d in the database), false-positive rate %.4f, " +
+                            "database skip rate %.4f, average lookup %.1f us", lookups, databaseLookups,
+                    falsePositiveRate, databaseSkipRate, averageLookupMicros);
+        }
+    }
+}
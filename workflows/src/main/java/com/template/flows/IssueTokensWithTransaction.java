@@ -7,10 +7,13 @@ import com.r3.corda.lib.tokens.contracts.types.TokenType;
 import com.r3.corda.lib.tokens.contracts.utilities.AmountUtilitiesKt;
 import com.r3.corda.lib.tokens.money.FiatCurrency;
 import com.template.contracts.TokenTransactionContract;
+import com.template.states.MultiLegTokenTransaction;
 import com.template.states.TokenTransaction;
 import net.corda.core.contracts.Amount;
 import net.corda.core.contracts.Command;
 import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.cordapp.CordappConfig;
 import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
@@ -18,18 +21,23 @@ import net.corda.core.serialization.CordaSerializable;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 
+import java.io.IOException;
+import java.sql.SQLException;
 import java.time.Instant;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.*;
 
 import static com.r3.corda.lib.tokens.workflows.flows.issue.IssueTokensUtilitiesKt.addIssueTokens;
 import static com.r3.corda.lib.tokens.workflows.utilities.FlowUtilitiesKt.addTokenTypeJar;
-import static com.r3.corda.lib.tokens.workflows.utilities.NotaryUtilitiesKt.firstNotary;
-import static com.r3.corda.lib.tokens.workflows.utilities.NotaryUtilitiesKt.getPreferredNotary;
 
 
 public class IssueTokensWithTransaction {
 
+    // Record one multi-leg token-transaction per issuance instead of one token-transaction per holder.
+    static final String MULTI_LEG_CONFIG = "tokenTransactions.multiLeg";
+
+    // Start of the message a request is rejected with when the explorer has already seen its key.
+    public static final String DUPLICATE_REQUEST = "Duplicate issuance request";
+
     @CordaSerializable
     enum CounterPartyRole {PARTICIPANT, SIGNER}
 
@@ -37,61 +45,131 @@ public class IssueTokensWithTransaction {
     @StartableByRPC
     public static class Initiator extends FlowLogic<SignedTransaction> {
 
-        private final Party holder;
-        private final long quantity;
+        private final List<Party> holders;
+        private final List<Long> quantities;
         private final Party explorer;
-
-        // For simplicity of example, this flow issues one token to one holder.
+        /*
+        * Retries of the same request (e.g. after an RPC timeout) must reuse the same key;
+        * the explorer rejects keys it has already seen.
+        * Without a client-supplied key, a random one is used (i.e. retries are not detected).
+        * */
+        private final String idempotencyKey;
+
+        // Issues one token to one holder (see below for several holders in one transaction).
         public Initiator(Party holder, long quantity, Party explorer) {
-            this.holder = holder;
-            this.quantity = quantity;
+            this(holder, quantity, explorer, null);
+        }
+
+        public Initiator(Party holder, long quantity, Party explorer, String idempotencyKey) {
+            this(Collections.singletonList(holder), Collections.singletonList(quantity), explorer, idempotencyKey);
+        }
+
+        // Issues one token to each holder in one transaction (e.g. bulk issuance).
+        public Initiator(List<Party> holders, List<Long> quantities, Party explorer, String idempotencyKey) {
+            if (holders.isEmpty() || holders.size() != quantities.size())
+                throw new IllegalArgumentException(String.format(
+                        "Need one quantity per holder (%d holders, %d quantities).",
+                        holders.size(), quantities.size()));
+            this.holders = holders;
+            this.quantities = quantities;
             this.explorer = explorer;
+            this.idempotencyKey = idempotencyKey;
         }
 
+        /*
+        * Every suspension point (send, receive, sub-flows that talk to other nodes) checkpoints the fiber stack.
+        * So the transaction is built in "buildAndSign", and only the signed transaction and the sessions stay live
+        * across suspensions (i.e. not the builder, the tokens, or the token-transactions).
+        * */
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
-            // Get preferred notary from tokens-workflows CorDapp configuration file.
-            Party notary = getPreferredNotary(getServiceHub(), firstNotary());
+            CheckpointMetrics checkpointMetrics = getServiceHub().cordaService(CheckpointMetrics.class);
+            String key = idempotencyKey != null ? idempotencyKey : UUID.randomUUID().toString();
+
+            // Reject duplicate requests before building anything.
+            FlowSession explorerSession = initiateFlow(explorer);
+            explorerSession.send(CounterPartyRole.SIGNER);
+            boolean duplicate = explorerSession.sendAndReceive(Boolean.class, key).unwrap(it -> it);
+            checkpointMetrics.record(this, "duplicate check");
+            if (duplicate)
+                throw new FlowException(String.format("%s %s.", DUPLICATE_REQUEST, key));
+
+            // Pick notary as configured by "notarySelection.strategy" (defaults to the preferred notary).
+            NotarySelector notarySelector = getServiceHub().cordaService(NotarySelector.class);
+            Party notary = notarySelector.select(holders.get(0));
+            try {
+                // Holders only need to finalize the transaction.
+                List<FlowSession> sessions = new ArrayList<>();
+                for (Party holder : new LinkedHashSet<>(holders)) {
+                    FlowSession holderSession = initiateFlow(holder);
+                    holderSession.send(CounterPartyRole.PARTICIPANT);
+                    sessions.add(holderSession);
+                }
+                checkpointMetrics.record(this, "holder sessions");
+
+                // Collect signature from token-transaction explorer.
+                SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(buildAndSign(notary, key),
+                        Collections.singletonList(explorerSession)));
+                checkpointMetrics.record(this, "signatures");
+
+                // Finalize transaction.
+                sessions.add(explorerSession);
+                SignedTransaction finalTx = subFlow(new FinalityFlow(fullySignedTx, sessions));
+                checkpointMetrics.record(this, "finality");
+
+                return finalTx;
+            }
+            finally {
+                notarySelector.release(notary);
+            }
+        }
 
-            // Create token.
+        // Nothing in here suspends, and its locals are gone once it returns; so they never reach a checkpoint.
+        private SignedTransaction buildAndSign(Party notary, String key) throws FlowException {
+            // Create tokens (one per holder) and token-transactions (one per holder, or one with a leg per holder).
+            CordappConfig config = getServiceHub().getAppContext().getConfig();
+            boolean multiLeg = config.exists(MULTI_LEG_CONFIG) && config.getBoolean(MULTI_LEG_CONFIG);
             TokenType usdType = FiatCurrency.Companion.getInstance("USD");
             IssuedTokenType issuedUsd = new IssuedTokenType(getOurIdentity(), usdType);
-            Amount<IssuedTokenType> tokenAmount = AmountUtilitiesKt.amount(quantity, issuedUsd);
-            FungibleToken usdToken = new FungibleToken(tokenAmount, holder, null);
-
-            // Create token-transaction.
-            TokenTransaction tokenTransaction = new TokenTransaction(new UniqueIdentifier(), explorer,
-                    Instant.now(), "ISSUE", getOurIdentity().getName().toString(),
-                    holder.getName().toString(), quantity);
+            String issuer = getOurIdentity().getName().toString();
+            List<FungibleToken> usdTokens = new ArrayList<>();
+            List<ContractState> tokenTransactions = new ArrayList<>();
+            List<MultiLegTokenTransaction.Leg> legs = new ArrayList<>();
+            Instant timestamp = Instant.now();
+            for (int i = 0; i < holders.size(); i++) {
+                Party holder = holders.get(i);
+                long quantity = quantities.get(i);
+                Amount<IssuedTokenType> tokenAmount = AmountUtilitiesKt.amount(quantity, issuedUsd);
+                usdTokens.add(new FungibleToken(tokenAmount, holder, null));
+                if (multiLeg)
+                    legs.add(new MultiLegTokenTransaction.Leg(issuer, holder.getName().toString(), quantity));
+                else
+                    tokenTransactions.add(new TokenTransaction(new UniqueIdentifier(), explorer,
+                            timestamp, "ISSUE", issuer, holder.getName().toString(), quantity, key));
+            }
+            if (multiLeg)
+                tokenTransactions.add(new MultiLegTokenTransaction(new UniqueIdentifier(), explorer,
+                        timestamp, "ISSUE", legs, key));
 
             // Assemble transaction.
             TransactionBuilder txBuilder = new TransactionBuilder(notary);
-            // Add token.
-            addIssueTokens(txBuilder, Collections.singletonList(usdToken));
-            addTokenTypeJar(Collections.singletonList(usdToken), txBuilder);
-            // Add token-transaction.
+            // Add tokens.
+            addIssueTokens(txBuilder, usdTokens);
+            addTokenTypeJar(usdTokens, txBuilder);
+            // Add token-transactions.
             Command<TokenTransactionContract.Commands.Create> createTokenTransaction =
                     new Command<>(new TokenTransactionContract.Commands.Create(),
-                            Collections.singletonList(tokenTransaction.getExplorer().getOwningKey()));
-            txBuilder.addCommand(createTokenTransaction).addOutputState(tokenTransaction);
+                            Collections.singletonList(explorer.getOwningKey()));
+            txBuilder.addCommand(createTokenTransaction);
+            for (ContractState tokenTransaction : tokenTransactions)
+                txBuilder.addOutputState(tokenTransaction);
 
             // Verify transaction.
             txBuilder.verify(getServiceHub());
 
             // Sign locally.
-            SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder);
-
-            // Collect signature from token-transaction explorer.
-            FlowSession explorerSession = initiateFlow(explorer);
-            explorerSession.send(CounterPartyRole.SIGNER);
-            FlowSession holderSession = initiateFlow(holder);
-            holderSession.send(CounterPartyRole.PARTICIPANT);
-            SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partSignedTx,
-                    Collections.singletonList(explorerSession)));
-
-            // Finalize transaction.
-            return subFlow(new FinalityFlow(fullySignedTx, Arrays.asList(holderSession, explorerSession)));
+            return getServiceHub().signInitialTransaction(txBuilder);
         }
     }
 
@@ -107,29 +185,62 @@ public class IssueTokensWithTransaction {
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
-            SecureHash txId = null;
             CounterPartyRole role = counterPartySession.receive(CounterPartyRole.class)
                     .unwrap(it -> it);
             /*
             * Both token holder and token-transaction explorer need to finalize the transaction,
             * but only explorer need to sign (holder is not required to sign on issuing of tokens).
             * */
-            if (role == CounterPartyRole.SIGNER) {
-                class SignTxFlow extends SignTransactionFlow {
-                    private SignTxFlow(FlowSession otherPartyFlow) {
-                        super(otherPartyFlow);
-                    }
+            if (role != CounterPartyRole.SIGNER)
+                return subFlow(new ReceiveFinalityFlow(counterPartySession, null));
 
-                    @Override
-                    protected void checkTransaction(SignedTransaction stx) {
-                        // Some validation rules.
+            /*
+            * The key stays reserved until the token-transaction is recorded (see "IdempotencyKeys");
+            * so a retry that arrives while this request is still in flight is rejected too.
+            * */
+            IdempotencyKeys idempotencyKeys = getServiceHub().cordaService(IdempotencyKeys.class);
+            String key = counterPartySession.receive(String.class).unwrap(it -> it);
+            boolean reserved = reserve(idempotencyKeys, key);
+            counterPartySession.send(!reserved);
+            if (!reserved)
+                return null;
+
+            class SignTxFlow extends SignTransactionFlow {
+                private SignTxFlow(FlowSession otherPartyFlow) {
+                    super(otherPartyFlow);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
+                    // Some validation rules.
+                    for (TokenTransaction tokenTransaction : stx.getTx().outputsOfType(TokenTransaction.class)) {
+                        if (!key.equals(tokenTransaction.getIdempotencyKey()))
+                            throw new FlowException("Token-transaction doesn't carry the checked request key.");
+                    }
+                    for (MultiLegTokenTransaction tokenTransaction :
+                            stx.getTx().outputsOfType(MultiLegTokenTransaction.class)) {
+                        if (!key.equals(tokenTransaction.getIdempotencyKey()))
+                            throw new FlowException("Token-transaction doesn't carry the checked request key.");
                     }
                 }
-                final SignTxFlow signTxFlow = new SignTxFlow(counterPartySession);
-                txId = subFlow(signTxFlow).getId();
             }
+            try {
+                SecureHash txId = subFlow(new SignTxFlow(counterPartySession)).getId();
+                return subFlow(new ReceiveFinalityFlow(counterPartySession, txId));
+            }
+            catch (FlowException | RuntimeException ex) {
+                idempotencyKeys.release(key);
+                throw ex;
+            }
+        }
 
-            return subFlow(new ReceiveFinalityFlow(counterPartySession, txId));
+        private static boolean reserve(IdempotencyKeys idempotencyKeys, String key) throws FlowException {
+            try {
+                return idempotencyKeys.reserve(key);
+            }
+            catch (SQLException | IOException ex) {
+                throw new FlowException("Failed to check the issuance request key.", ex);
+            }
         }
     }
 }
@@ -0,0 +1,59 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+* Explorer-side reporting queries over the legs of multi-leg token-transactions (token_transaction_legs);
+* these have no vault schema of their own, so they can't be aggregated with VaultCustomQueryCriteria.
+* */
+public class MultiLegTokenTransactionQueries {
+
+    // Sum of quantity of all legs by (holder, type); "holderColumn" is "fromHolder" or "toHolder".
+    @StartableByRPC
+    public static class SumByHolderAndType extends FlowLogic<List<TokenTransactionArchive.HolderTypeSum>> {
+
+        private final String holderColumn;
+
+        public SumByHolderAndType(String holderColumn) {
+            this.holderColumn = holderColumn;
+        }
+
+        @Suspendable
+        @Override
+        public List<TokenTransactionArchive.HolderTypeSum> call() throws FlowException {
+            String column;
+            if (holderColumn.equals("fromHolder"))
+                column = "l.from_holder";
+            else if (holderColumn.equals("toHolder"))
+                column = "l.to_holder";
+            else
+                throw new FlowException("Unknown holder column " + holderColumn);
+
+            List<TokenTransactionArchive.HolderTypeSum> result = new ArrayList<>();
+            try (PreparedStatement select = getServiceHub().jdbcSession().prepareStatement(
+                    "SELECT " + column + ", m.type, SUM(l.quantity) FROM multi_leg_token_transactions m " +
+                            "JOIN token_transaction_legs l " +
+                            "ON l.transaction_id = m.transaction_id AND l.output_index = m.output_index " +
+                            "WHERE " + column + " IS NOT NULL GROUP BY " + column + ", m.type")) {
+                try (ResultSet rows = select.executeQuery()) {
+                    while (rows.next())
+                        result.add(new TokenTransactionArchive.HolderTypeSum(rows.getString(1), rows.getString(2),
+                                rows.getLong(3)));
+                }
+            }
+            catch (SQLException ex) {
+                throw new FlowException("Failed to sum token-transaction legs.", ex);
+            }
+            return result;
+        }
+    }
+}
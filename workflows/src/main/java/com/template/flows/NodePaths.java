@@ -0,0 +1,45 @@
+package com.template.flows;
+
+import net.corda.core.node.AppServiceHub;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URISyntaxException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/*
+* Resolves the files this CorDapp keeps on the node's local disk (see "TokenTransactionArchive" and
+* "TokenTransactionIndex"): absolute paths as they are, relative paths against the node directory.
+* The node directory is the parent of the "cordapps" directory that holds this CorDapp's jar; the node's working
+* directory may be anywhere.
+* */
+final class NodePaths {
+
+    private static final Logger logger = LoggerFactory.getLogger(NodePaths.class);
+
+    private NodePaths() {
+    }
+
+    static Path resolve(AppServiceHub serviceHub, String path) {
+        Path configured = Paths.get(path);
+        return configured.isAbsolute() ? configured : nodeDirectory(serviceHub).resolve(configured);
+    }
+
+    private static Path nodeDirectory(AppServiceHub serviceHub) {
+        try {
+            Path jar = Paths.get(serviceHub.getAppContext().getCordapp().getJarPath().toURI());
+            Path cordapps = jar.getParent();
+            if (cordapps != null && cordapps.getParent() != null &&
+                    cordapps.getFileName().toString().equals("cordapps"))
+                return cordapps.getParent();
+        }
+        catch (URISyntaxException | FileSystemNotFoundException | IllegalArgumentException ex) {
+            logger.debug("CorDapp jar path is not a local file.", ex);
+        }
+        Path workingDirectory = Paths.get("").toAbsolutePath();
+        logger.warn("CorDapp isn't installed in a node's cordapps directory; resolving against {}.", workingDirectory);
+        return workingDirectory;
+    }
+}
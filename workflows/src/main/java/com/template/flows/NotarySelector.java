@@ -0,0 +1,110 @@
+package com.template.flows;
+
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.r3.corda.lib.tokens.workflows.utilities.NotaryUtilitiesKt.firstNotary;
+import static com.r3.corda.lib.tokens.workflows.utilities.NotaryUtilitiesKt.getPreferredNotary;
+
+/*
+* Picks the notary of issuance transactions, so issuance traffic can be spread over all notaries of the network.
+* The strategy is set with "notarySelection.strategy" in this CorDapp's config file:
+*     - PREFERRED (default): Preferred notary from tokens-workflows CorDapp configuration file.
+*     - ROUND_ROBIN: Notaries take turns.
+*     - LEAST_LOADED: Notary with the fewest issuances of this node in flight (i.e. selected but not yet released,
+*       see "release"); ties take turns, so concurrent issuances spread over idle notaries.
+*     - HOLDER_HASH: Same notary for the same holder; so later moves of the holder's tokens
+*       don't need a notary change.
+* */
+@CordaService
+public class NotarySelector extends SingletonSerializeAsToken {
+
+    public enum Strategy {PREFERRED, ROUND_ROBIN, LEAST_LOADED, HOLDER_HASH}
+
+    static final String STRATEGY_CONFIG = "notarySelection.strategy";
+
+    private final AppServiceHub serviceHub;
+    private final AtomicLong nextIndex = new AtomicLong();
+    // Issuances between "select" and "release" per notary.
+    private final Map<Party, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+
+    public NotarySelector(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+    }
+
+    // Every selected notary must be released once the issuance is finalized or has failed.
+    public Party select(Party holder) {
+        Strategy strategy = strategy();
+        if (strategy == Strategy.PREFERRED)
+            return acquire(getPreferredNotary(serviceHub, firstNotary()));
+
+        // Sorted, so all nodes see the same order.
+        List<Party> notaries = new ArrayList<>(serviceHub.getNetworkMapCache().getNotaryIdentities());
+        if (notaries.isEmpty())
+            throw new IllegalStateException("There are no notaries on the network.");
+        notaries.sort(Comparator.comparing(it -> it.getName().toString()));
+
+        switch (strategy) {
+            case ROUND_ROBIN:
+                return acquire(notaries.get(nextIndex(notaries.size())));
+            case LEAST_LOADED:
+                // Picked and counted at once; so concurrent issuances see each other's picks.
+                synchronized (inFlight) {
+                    int start = nextIndex(notaries.size());
+                    Party least = null;
+                    for (int i = 0; i < notaries.size(); i++) {
+                        Party notary = notaries.get((start + i) % notaries.size());
+                        if (least == null || inFlight(notary) < inFlight(least))
+                            least = notary;
+                    }
+                    return acquire(least);
+                }
+            case HOLDER_HASH:
+                return acquire(notaries.get(
+                        Math.floorMod(holder.getName().toString().hashCode(), notaries.size())));
+            default:
+                throw new IllegalStateException(String.format("Unrecognized strategy %s.", strategy));
+        }
+    }
+
+    /*
+    * Called once per "select", after finality or on failure; feeds the LEAST_LOADED strategy.
+    * Counts start from zero when the node restarts, while restored flows still release; so they don't go below zero.
+    * */
+    public void release(Party notary) {
+        AtomicInteger count = inFlight.get(notary);
+        if (count != null)
+            count.updateAndGet(it -> Math.max(0, it - 1));
+    }
+
+    public int inFlight(Party notary) {
+        AtomicInteger count = inFlight.get(notary);
+        return count == null ? 0 : count.get();
+    }
+
+    private Party acquire(Party notary) {
+        inFlight.computeIfAbsent(notary, it -> new AtomicInteger()).incrementAndGet();
+        return notary;
+    }
+
+    private int nextIndex(int notaryCount) {
+        return (int) Math.floorMod(nextIndex.getAndIncrement(), (long) notaryCount);
+    }
+
+    private Strategy strategy() {
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        return config.exists(STRATEGY_CONFIG) ?
+                Strategy.valueOf(config.getString(STRATEGY_CONFIG)) : Strategy.PREFERRED;
+    }
+}
@@ -0,0 +1,847 @@
+package com.template.flows;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/*
+* Moves old rows of the token_transactions table into compressed segment files on local disk,
+* keeping the hot table (and its indexes and backups) small.
+* Only the reporting table is trimmed; the TokenTransaction states themselves stay in the vault and the
+* transaction storage, so vault queries that don't join on token_transactions are not affected.
+* Multi-leg token-transactions (multi_leg_token_transactions and its legs) are not archived; "query" reads
+* their legs from the live tables.
+*
+* Rows are only archived once "HolderCheckpoints" no longer needs them, i.e. once the latest checkpoint of both
+* their holders covers them; so checkpoints and their totals never read archived rows. Rows held back because a
+* holder has no (recent enough) checkpoint are counted in the final report of a run ("heldBackRows").
+* Readers of the whole history read the segments too ("query", "forEachArchived", "sumByHolderAndType",
+* "containsKey"); segments keep every column, including the idempotency key and the vault's recorded time.
+*
+* Segments are partitioned by UTC month (one file per month) and are append-only;
+* each archive run appends one deflate-compressed block:
+*     [int compressed length][int row count][deflated rows]
+* Each segment has an index file with an entry per block: its offset, row count, time range, and a bloom filter
+* of its idempotency keys and state references. So readers skip blocks outside their time range ("query") or
+* without their key ("containsKey"), and blocks are read as streams, one row at a time.
+* A block is written before its rows are deleted (in the flow's transaction); until that deletion commits, the
+* rows are both archived and live. The index records up to where blocks are known to have no live rows; the next
+* run deletes the live rows of the blocks after that, and readers skip them there.
+* */
+@CordaService
+public class TokenTransactionArchive extends SingletonSerializeAsToken {
+
+    private static final Logger logger = LoggerFactory.getLogger(TokenTransactionArchive.class);
+
+    // CorDapp config key of the segments directory; relative paths are resolved against the node directory.
+    static final String DIRECTORY_CONFIG = "archive.directory";
+    private static final String DEFAULT_DIRECTORY = "token-transactions-archive";
+    private static final DateTimeFormatter PARTITION_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM")
+            .withZone(ZoneOffset.UTC);
+    private static final String COLUMNS = "t.transaction_id, t.output_index, t.linear_id, t.explorer, " +
+            "t.timestamp, t.type, t.from_holder, t.to_holder, t.quantity, t.idempotency_key, v.recorded_timestamp";
+    private static final String FROM = "FROM token_transactions t JOIN vault_states v " +
+            "ON v.transaction_id = t.transaction_id AND v.output_index = t.output_index ";
+    // Recorded no later than the latest (i.e. unconsumed) checkpoint of the holder; true for no holder.
+    // (EXISTS rather than a comparison with the checkpoint's time; so no checkpoint is false, not unknown.)
+    private static final String COVERED_BY_CHECKPOINT = "(%1$s IS NULL OR EXISTS " +
+            "(SELECT 1 FROM token_transaction_checkpoints c JOIN vault_states cv " +
+            "ON cv.transaction_id = c.transaction_id AND cv.output_index = c.output_index " +
+            "WHERE cv.state_status = 0 AND c.holder = %1$s AND c.as_of >= v.recorded_timestamp))";
+    private static final String COVERED = String.format(COVERED_BY_CHECKPOINT, "t.from_holder") + " AND " +
+            String.format(COVERED_BY_CHECKPOINT, "t.to_holder");
+    private static final String ARCHIVABLE = "t.timestamp < ? AND " + COVERED;
+    private static final String HELD_BACK = "t.timestamp < ? AND NOT (" + COVERED + ")";
+    // Bloom filter entries of a block; keys and references share one filter.
+    private static final String KEY_PREFIX = "key:";
+    private static final String REF_PREFIX = "ref:";
+    private static final double BLOCK_FALSE_POSITIVE_PROBABILITY = 0.01;
+    // Latency percentiles are over the most recent queries.
+    private static final int RECENT_QUERIES = 1024;
+
+    private final AppServiceHub serviceHub;
+    // Block index of each segment (by partition); loaded on first use, replaced on every change.
+    private final Map<String, SegmentIndex> indexes = new HashMap<>();
+
+    // Statistics of "query", reported by the "ArchivedTokenTransactions.QueryStats" flow.
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong queryNanos = new AtomicLong();
+    private final long[] recentQueryMicros = new long[RECENT_QUERIES];
+
+    public TokenTransactionArchive(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+    }
+
+    /*
+    * Archives one batch of archivable rows (see above) with "timestamp" before the cutoff: the oldest rows of
+    * the oldest month,
+    * at most "maxRows" of them; so each call holds a bounded number of rows in memory and in its transaction.
+    * Callers repeat (one flow, i.e. one database transaction, per batch) until the report says "done".
+    * Must be called from within a flow; the rows are deleted in the flow's database transaction,
+    * after their segment block was written and synced to disk.
+    * A failure between the two leaves rows both archived and live; the next run deletes them first (so they
+    * aren't archived again), and readers skip them meanwhile.
+    * */
+    public ArchiveReport archive(Instant cutoff, int maxRows) throws IOException, SQLException {
+        Connection connection = serviceHub.jdbcSession();
+        long completed = completeBlocks(connection);
+        if (completed > 0)
+            logger.info("Deleted {} token-transactions archived by an earlier run.", completed);
+
+        Instant oldest;
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT MIN(t.timestamp) " + FROM + "WHERE " + ARCHIVABLE)) {
+            select.setTimestamp(1, Timestamp.from(cutoff));
+            try (ResultSet result = select.executeQuery()) {
+                result.next();
+                Timestamp min = result.getTimestamp(1);
+                oldest = min == null ? null : min.toInstant();
+            }
+        }
+        if (oldest == null)
+            return new ArchiveReport(0, hotRows(connection), segmentBytes(), heldBackRows(connection, cutoff), true);
+
+        // Up to the end of the oldest month (or the cutoff, if that comes first).
+        String partition = PARTITION_FORMAT.format(oldest);
+        Instant monthEnd = partitionEnd(partition);
+        Instant batchEnd = monthEnd.isBefore(cutoff) ? monthEnd : cutoff;
+        List<TokenTransactionRecord> records = new ArrayList<>();
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT " + COLUMNS + " " + FROM + "WHERE " + ARCHIVABLE +
+                        " ORDER BY t.timestamp, t.transaction_id, t.output_index")) {
+            select.setTimestamp(1, Timestamp.from(batchEnd));
+            select.setMaxRows(maxRows);
+            try (ResultSet rows = select.executeQuery()) {
+                while (rows.next())
+                    records.add(toRecord(rows));
+            }
+        }
+        appendBlock(segmentPath(partition), records);
+
+        // Exactly the rows that were written (i.e. not rows committed since they were read).
+        try (PreparedStatement delete = connection.prepareStatement(
+                "DELETE FROM token_transactions WHERE transaction_id = ? AND output_index = ?")) {
+            for (TokenTransactionRecord record : records) {
+                delete.setString(1, record.getTransactionId());
+                delete.setInt(2, record.getOutputIndex());
+                delete.addBatch();
+            }
+            delete.executeBatch();
+        }
+
+        boolean done;
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT 1 " + FROM + "WHERE " + ARCHIVABLE)) {
+            select.setTimestamp(1, Timestamp.from(cutoff));
+            select.setMaxRows(1);
+            try (ResultSet result = select.executeQuery()) {
+                done = !result.next();
+            }
+        }
+
+        // Keeps the duplicate check of archived keys cheap (see "IdempotencyKeys").
+        IdempotencyKeys idempotencyKeys = serviceHub.cordaService(IdempotencyKeys.class);
+        for (TokenTransactionRecord record : records)
+            idempotencyKeys.archived(record.getIdempotencyKey());
+
+        long hotRows = hotRows(connection);
+        long segmentBytes = segmentBytes();
+        long heldBackRows = done ? heldBackRows(connection, cutoff) : 0;
+        logger.info("Archived {} token-transactions of {}; {} rows left in token_transactions, " +
+                "{} bytes in segments.", records.size(), partition, hotRows, segmentBytes);
+        return new ArchiveReport(records.size(), hotRows, segmentBytes, heldBackRows, done);
+    }
+
+    private static long hotRows(Connection connection) throws SQLException {
+        try (Statement count = connection.createStatement();
+             ResultSet result = count.executeQuery("SELECT COUNT(*) FROM token_transactions")) {
+            result.next();
+            return result.getLong(1);
+        }
+    }
+
+    // Rows before the cutoff that a holder's checkpoint doesn't cover yet; so they stay live.
+    private static long heldBackRows(Connection connection, Instant cutoff) throws SQLException {
+        try (PreparedStatement count = connection.prepareStatement(
+                "SELECT COUNT(*) " + FROM + "WHERE " + HELD_BACK)) {
+            count.setTimestamp(1, Timestamp.from(cutoff));
+            try (ResultSet result = count.executeQuery()) {
+                result.next();
+                long heldBack = result.getLong(1);
+                if (heldBack > 0)
+                    logger.warn("{} token-transactions before the cutoff are held back until their holders' " +
+                            "checkpoints cover them (see \"HolderCheckpoints\").", heldBack);
+                return heldBack;
+            }
+        }
+    }
+
+    private long segmentBytes() throws IOException {
+        long segmentBytes = 0;
+        for (Path segment : segments())
+            segmentBytes += Files.size(segment);
+        return segmentBytes;
+    }
+
+    /*
+    * Rows of the holder (as from-holder or to-holder) with "from" <= timestamp < "to",
+    * merged from the archived segments and the live table, ordered by timestamp.
+    * A null holder matches all rows.
+    * */
+    public List<TokenTransactionRecord> query(String holder, Instant from, Instant to)
+            throws IOException, SQLException {
+        long start = System.nanoTime();
+        Map<String, TokenTransactionRecord> merged = new LinkedHashMap<>();
+
+        // Only segments whose month overlaps the range are read, and of those only the blocks that do.
+        String firstPartition = PARTITION_FORMAT.format(from);
+        String lastPartition = PARTITION_FORMAT.format(to);
+        for (Path segment : segments()) {
+            String partition = partitionOf(segment);
+            if (partition.compareTo(firstPartition) < 0 || partition.compareTo(lastPartition) > 0)
+                continue;
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                for (Block block : index(segment).blocks) {
+                    if (block.maxTimestamp.isBefore(from) || !block.minTimestamp.isBefore(to))
+                        continue;
+                    readBlock(channel, block, record -> {
+                        if (matches(record, holder, from, to))
+                            merged.put(refOf(record), record);
+                        return true;
+                    });
+                }
+            }
+        }
+
+        // Multi-leg token-transactions are never archived; their legs are read from the live tables only.
+        String sql = "SELECT " + COLUMNS + ", t.leg_index FROM (" + TokenTransactionRows.ALL + ") t " +
+                "JOIN vault_states v ON v.transaction_id = t.transaction_id AND v.output_index = t.output_index " +
+                "WHERE t.timestamp >= ? AND t.timestamp < ?" +
+                (holder == null ? "" : " AND (t.from_holder = ? OR t.to_holder = ?)");
+        try (PreparedStatement select = serviceHub.jdbcSession().prepareStatement(sql)) {
+            select.setTimestamp(1, Timestamp.from(from));
+            select.setTimestamp(2, Timestamp.from(to));
+            if (holder != null) {
+                select.setString(3, holder);
+                select.setString(4, holder);
+            }
+            try (ResultSet rows = select.executeQuery()) {
+                while (rows.next()) {
+                    TokenTransactionRecord record = toRecord(rows);
+                    merged.put(TokenTransactionRows.refOf(record.getTransactionId(), record.getOutputIndex(),
+                            rows.getInt("leg_index")), record);
+                }
+            }
+        }
+
+        List<TokenTransactionRecord> result = new ArrayList<>(merged.values());
+        result.sort(Comparator.comparing(TokenTransactionRecord::getTimestamp));
+        recordQuery(System.nanoTime() - start);
+        return result;
+    }
+
+    // Reported by the "ArchivedTokenTransactions.QueryStats" flow.
+    public QueryStats getQueryStats() {
+        long count = queries.get();
+        long[] recent;
+        synchronized (recentQueryMicros) {
+            recent = Arrays.copyOf(recentQueryMicros, (int) Math.min(count, RECENT_QUERIES));
+        }
+        Arrays.sort(recent);
+        return new QueryStats(count, count == 0 ? 0 : queryNanos.get() / 1000.0 / count,
+                percentile(recent, 50), percentile(recent, 95), recent.length == 0 ? 0 : recent[recent.length - 1]);
+    }
+
+    private void recordQuery(long nanos) {
+        long count = queries.getAndIncrement();
+        queryNanos.addAndGet(nanos);
+        synchronized (recentQueryMicros) {
+            recentQueryMicros[(int) (count % RECENT_QUERIES)] = nanos / 1000;
+        }
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
+    /*
+    * Calls the consumer with every archived row, block by block (one row in memory at a time).
+    * Rows that are still live (i.e. their archive run failed) are skipped; they are read from the table.
+    * Must be called from within a flow (i.e. a database transaction).
+    * */
+    public void forEachArchived(Consumer<TokenTransactionRecord> consumer) throws IOException, SQLException {
+        for (Path segment : segments()) {
+            SegmentIndex index = index(segment);
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                for (Block block : index.blocks) {
+                    Set<String> liveRefs = block.offset < index.completeUntil ? Collections.emptySet() :
+                            liveRefs(channel, block);
+                    readBlock(channel, block, record -> {
+                        if (!liveRefs.contains(refOf(record)))
+                            consumer.accept(record);
+                        return true;
+                    });
+                }
+            }
+        }
+    }
+
+    /*
+    * Sum of quantity of the archived rows grouped by (holder column, type);
+    * "holderColumn" is "fromHolder" or "toHolder".
+    * */
+    public List<HolderTypeSum> sumByHolderAndType(String holderColumn) throws IOException, SQLException {
+        boolean byFromHolder = holderColumn.equals("fromHolder");
+        if (!byFromHolder && !holderColumn.equals("toHolder"))
+            throw new IllegalArgumentException("Unknown holder column " + holderColumn);
+
+        Map<List<String>, Long> sums = new HashMap<>();
+        forEachArchived(record -> {
+            String holder = byFromHolder ? record.getFromHolder() : record.getToHolder();
+            if (holder != null)
+                sums.merge(Arrays.asList(holder, record.getType()), record.getQuantity(), Long::sum);
+        });
+        List<HolderTypeSum> result = new ArrayList<>();
+        sums.forEach((holderAndType, sum) -> result.add(
+                new HolderTypeSum(holderAndType.get(0), holderAndType.get(1), sum)));
+        return result;
+    }
+
+    // Whether an archived row carries the idempotency key; only blocks whose bloom filter might have it are read.
+    public boolean containsKey(String idempotencyKey) throws IOException {
+        for (Path segment : segments()) {
+            List<Block> candidates = new ArrayList<>();
+            for (Block block : index(segment).blocks) {
+                if (block.filter.mightContain(KEY_PREFIX + idempotencyKey))
+                    candidates.add(block);
+            }
+            if (candidates.isEmpty())
+                continue;
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                for (Block block : candidates) {
+                    if (!readBlock(channel, block, record -> !idempotencyKey.equals(record.getIdempotencyKey())))
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+    * Deletes the live rows of blocks that aren't known to be complete (i.e. whose deletion might not have
+    * committed); a block is complete once a run finds none of its rows live. Returns the rows deleted.
+    * */
+    private long completeBlocks(Connection connection) throws IOException, SQLException {
+        long deleted = 0;
+        for (Path segment : segments()) {
+            SegmentIndex index = index(segment);
+            long completeUntil = index.completeUntil;
+            boolean complete = true;
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ);
+                 PreparedStatement delete = connection.prepareStatement(
+                         "DELETE FROM token_transactions WHERE transaction_id = ? AND output_index = ?")) {
+                for (Block block : index.blocks) {
+                    if (block.offset < index.completeUntil)
+                        continue;
+                    Set<String> liveRefs = liveRefs(channel, block);
+                    // Deleted now, but only complete once a later run finds them gone (i.e. this one committed).
+                    complete &= liveRefs.isEmpty();
+                    if (complete)
+                        completeUntil = block.end();
+                    for (String ref : liveRefs) {
+                        int separator = ref.lastIndexOf(':');
+                        delete.setString(1, ref.substring(0, separator));
+                        delete.setInt(2, Integer.parseInt(ref.substring(separator + 1)));
+                        delete.addBatch();
+                        deleted++;
+                    }
+                }
+                delete.executeBatch();
+            }
+            if (completeUntil != index.completeUntil)
+                markComplete(segment, completeUntil);
+        }
+        return deleted;
+    }
+
+    /*
+    * Rows of the block that are still live: live rows in the block's time range whose reference the block's
+    * bloom filter might contain, confirmed by reading the block only if there are any.
+    * */
+    private Set<String> liveRefs(FileChannel channel, Block block) throws SQLException, IOException {
+        Set<String> candidates = new HashSet<>();
+        if (block.rowCount == 0)
+            return candidates;
+        try (PreparedStatement select = serviceHub.jdbcSession().prepareStatement(
+                "SELECT transaction_id, output_index FROM token_transactions " +
+                        "WHERE timestamp >= ? AND timestamp <= ?")) {
+            select.setTimestamp(1, Timestamp.from(block.minTimestamp));
+            select.setTimestamp(2, Timestamp.from(block.maxTimestamp));
+            try (ResultSet rows = select.executeQuery()) {
+                while (rows.next()) {
+                    String ref = rows.getString(1) + ":" + rows.getInt(2);
+                    if (block.filter.mightContain(REF_PREFIX + ref))
+                        candidates.add(ref);
+                }
+            }
+        }
+        if (candidates.isEmpty())
+            return candidates;
+        Set<String> liveRefs = new HashSet<>();
+        readBlock(channel, block, record -> {
+            if (candidates.contains(refOf(record)))
+                liveRefs.add(refOf(record));
+            return true;
+        });
+        return liveRefs;
+    }
+
+    private static String refOf(TokenTransactionRecord record) {
+        return record.getTransactionId() + ":" + record.getOutputIndex();
+    }
+
+    private static Instant partitionEnd(String partition) {
+        return YearMonth.parse(partition).plusMonths(1).atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant();
+    }
+
+    private Path directory() throws IOException {
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        Path directory = NodePaths.resolve(serviceHub, config.exists(DIRECTORY_CONFIG) ?
+                config.getString(DIRECTORY_CONFIG) : DEFAULT_DIRECTORY);
+        return Files.createDirectories(directory);
+    }
+
+    private Path segmentPath(String partition) throws IOException {
+        return directory().resolve("token-transactions-" + partition + ".seg");
+    }
+
+    private static Path indexPath(Path segment) {
+        return segment.resolveSibling(segment.getFileName() + ".idx");
+    }
+
+    // Holds the offset up to which the segment's blocks are complete.
+    private static Path completePath(Path segment) {
+        return segment.resolveSibling(segment.getFileName() + ".complete");
+    }
+
+    private static String partitionOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return name.substring("token-transactions-".length(), name.length() - ".seg".length());
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory(), "token-transactions-*.seg")) {
+            files.forEach(segments::add);
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /*
+    * The segment's index; loaded from its index file on first use. Blocks past the last indexed one (i.e. written
+    * before a crash, or by a version without index files) are indexed by reading them; a block that was cut
+    * short by a crash is cut off the segment, its rows never having been deleted.
+    * */
+    private synchronized SegmentIndex index(Path segment) throws IOException {
+        String partition = partitionOf(segment);
+        SegmentIndex index = indexes.get(partition);
+        if (index != null)
+            return index;
+
+        List<Block> blocks = new ArrayList<>();
+        long indexed = 0;
+        long segmentSize = Files.size(segment);
+        if (Files.exists(indexPath(segment))) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(indexPath(segment))))) {
+                while (true) {
+                    Block block = readBlockEntry(in);
+                    if (block.end() > segmentSize)
+                        break;
+                    blocks.add(block);
+                    indexed = block.end();
+                }
+            }
+            catch (EOFException ex) {
+                // The last entry was cut short; it's rebuilt below.
+            }
+        }
+        if (indexed < segmentSize) {
+            blocks.addAll(scanBlocks(segment, indexed));
+            writeIndex(segment, blocks);
+        }
+
+        long completeUntil = 0;
+        if (Files.exists(completePath(segment)))
+            completeUntil = Long.parseLong(new String(Files.readAllBytes(completePath(segment)),
+                    StandardCharsets.UTF_8).trim());
+        index = new SegmentIndex(blocks, completeUntil);
+        indexes.put(partition, index);
+        return index;
+    }
+
+    private List<Block> scanBlocks(Path segment, long from) throws IOException {
+        List<Block> blocks = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long offset = from;
+            ByteBuffer header = ByteBuffer.allocate(8);
+            while (offset < channel.size()) {
+                header.clear();
+                channel.read(header, offset);
+                header.flip();
+                if (header.remaining() < 8 || offset + 8 + header.getInt(0) > channel.size()) {
+                    logger.warn("Cut off a partly written block at {} of segment {}.", offset, segment);
+                    channel.truncate(offset);
+                    channel.force(true);
+                    break;
+                }
+                int compressedLength = header.getInt(0);
+                int rowCount = header.getInt(4);
+                List<TokenTransactionRecord> records = new ArrayList<>(rowCount);
+                Block unindexed = new Block(offset, compressedLength, rowCount, Instant.MIN, Instant.MAX, null);
+                readBlock(channel, unindexed, records::add);
+                blocks.add(blockOf(offset, compressedLength, records));
+                offset = unindexed.end();
+            }
+        }
+        logger.info("Indexed {} blocks of segment {}.", blocks.size(), segment);
+        return blocks;
+    }
+
+    private synchronized void appendBlock(Path segment, List<TokenTransactionRecord> records) throws IOException {
+        if (records.isEmpty())
+            return;
+        SegmentIndex index = Files.exists(segment) ? index(segment) :
+                new SegmentIndex(Collections.emptyList(), 0);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(compressed,
+                new Deflater(Deflater.BEST_COMPRESSION)))) {
+            for (TokenTransactionRecord record : records)
+                writeRecord(out, record);
+        }
+
+        ByteBuffer bytes = ByteBuffer.allocate(8 + compressed.size());
+        bytes.putInt(compressed.size()).putInt(records.size()).put(compressed.toByteArray());
+        bytes.flip();
+        long offset;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            offset = channel.size();
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+            channel.force(true);
+        }
+
+        // A crash before the entry is written leaves the block unindexed; it's indexed when the index is loaded.
+        Block block = blockOf(offset, compressed.size(), records);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+                indexPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)))) {
+            writeBlockEntry(out, block);
+        }
+        List<Block> blocks = new ArrayList<>(index.blocks);
+        blocks.add(block);
+        indexes.put(partitionOf(segment), new SegmentIndex(blocks, index.completeUntil));
+    }
+
+    private synchronized void markComplete(Path segment, long completeUntil) throws IOException {
+        Path temporary = completePath(segment).resolveSibling(completePath(segment).getFileName() + ".tmp");
+        Files.write(temporary, Long.toString(completeUntil).getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, completePath(segment), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        SegmentIndex index = indexes.get(partitionOf(segment));
+        indexes.put(partitionOf(segment), new SegmentIndex(index.blocks, completeUntil));
+    }
+
+    private static Block blockOf(long offset, int compressedLength, List<TokenTransactionRecord> records) {
+        BloomFilter<String> filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+                Math.max(1, 2 * records.size()), BLOCK_FALSE_POSITIVE_PROBABILITY);
+        Instant min = Instant.MAX;
+        Instant max = Instant.MIN;
+        for (TokenTransactionRecord record : records) {
+            if (record.getIdempotencyKey() != null)
+                filter.put(KEY_PREFIX + record.getIdempotencyKey());
+            filter.put(REF_PREFIX + refOf(record));
+            min = record.getTimestamp().isBefore(min) ? record.getTimestamp() : min;
+            max = record.getTimestamp().isAfter(max) ? record.getTimestamp() : max;
+        }
+        return new Block(offset, compressedLength, records.size(), min, max, filter);
+    }
+
+    private static void writeIndex(Path segment, List<Block> blocks) throws IOException {
+        Path temporary = indexPath(segment).resolveSibling(indexPath(segment).getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temporary)))) {
+            for (Block block : blocks)
+                writeBlockEntry(out, block);
+        }
+        Files.move(temporary, indexPath(segment), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeBlockEntry(DataOutputStream out, Block block) throws IOException {
+        out.writeLong(block.offset);
+        out.writeInt(block.compressedLength);
+        out.writeInt(block.rowCount);
+        writeInstant(out, block.minTimestamp);
+        writeInstant(out, block.maxTimestamp);
+        block.filter.writeTo(out);
+    }
+
+    private static Block readBlockEntry(DataInputStream in) throws IOException {
+        return new Block(in.readLong(), in.readInt(), in.readInt(), readInstant(in), readInstant(in),
+                BloomFilter.readFrom(in, Funnels.stringFunnel(StandardCharsets.UTF_8)));
+    }
+
+    /*
+    * Streams the block's rows to the handler, one at a time, until it returns false;
+    * returns false if the handler stopped the read.
+    * */
+    private static boolean readBlock(FileChannel channel, Block block, Predicate<TokenTransactionRecord> handler)
+            throws IOException {
+        channel.position(block.offset + 8);
+        Inflater inflater = new Inflater();
+        try {
+            // Not closed; that would close the channel.
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(Channels.newInputStream(channel), inflater)));
+            for (int i = 0; i < block.rowCount; i++) {
+                if (!handler.test(readRecord(in)))
+                    return false;
+            }
+            return true;
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    private static boolean matches(TokenTransactionRecord record, String holder, Instant from, Instant to) {
+        if (record.getTimestamp().isBefore(from) || !record.getTimestamp().isBefore(to))
+            return false;
+        return holder == null || holder.equals(record.getFromHolder()) || holder.equals(record.getToHolder());
+    }
+
+    private static TokenTransactionRecord toRecord(ResultSet rows) throws SQLException {
+        return new TokenTransactionRecord(rows.getString("transaction_id"), rows.getInt("output_index"),
+                rows.getString("linear_id"), rows.getString("explorer"),
+                rows.getTimestamp("timestamp").toInstant(), rows.getString("type"),
+                rows.getString("from_holder"), rows.getString("to_holder"), rows.getLong("quantity"),
+                rows.getString("idempotency_key"), rows.getTimestamp("recorded_timestamp").toInstant());
+    }
+
+    private static void writeRecord(DataOutputStream out, TokenTransactionRecord record) throws IOException {
+        out.writeUTF(record.getTransactionId());
+        out.writeInt(record.getOutputIndex());
+        out.writeUTF(record.getLinearId());
+        out.writeUTF(record.getExplorer());
+        writeInstant(out, record.getTimestamp());
+        out.writeUTF(record.getType());
+        writeNullableUTF(out, record.getFromHolder());
+        writeNullableUTF(out, record.getToHolder());
+        out.writeLong(record.getQuantity());
+        writeNullableUTF(out, record.getIdempotencyKey());
+        writeInstant(out, record.getRecordedTimestamp());
+    }
+
+    private static TokenTransactionRecord readRecord(DataInputStream in) throws IOException {
+        return new TokenTransactionRecord(in.readUTF(), in.readInt(), in.readUTF(), in.readUTF(),
+                readInstant(in), in.readUTF(), readNullableUTF(in), readNullableUTF(in), in.readLong(),
+                readNullableUTF(in), readInstant(in));
+    }
+
+    private static void writeInstant(DataOutputStream out, Instant value) throws IOException {
+        out.writeLong(value.getEpochSecond());
+        out.writeInt(value.getNano());
+    }
+
+    private static Instant readInstant(DataInputStream in) throws IOException {
+        return Instant.ofEpochSecond(in.readLong(), in.readInt());
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static class Block {
+        // Of the block's header in the segment.
+        private final long offset;
+        private final int compressedLength;
+        private final int rowCount;
+        private final Instant minTimestamp;
+        private final Instant maxTimestamp;
+        // Idempotency keys (KEY_PREFIX) and state references (REF_PREFIX) of the block's rows.
+        private final BloomFilter<String> filter;
+
+        private Block(long offset, int compressedLength, int rowCount, Instant minTimestamp, Instant maxTimestamp,
+                      BloomFilter<String> filter) {
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.rowCount = rowCount;
+            this.minTimestamp = minTimestamp;
+            this.maxTimestamp = maxTimestamp;
+            this.filter = filter;
+        }
+
+        private long end() {
+            return offset + 8 + compressedLength;
+        }
+    }
+
+    private static class SegmentIndex {
+        private final List<Block> blocks;
+        // Blocks before this offset have no live rows.
+        private final long completeUntil;
+
+        private SegmentIndex(List<Block> blocks, long completeUntil) {
+            this.blocks = Collections.unmodifiableList(blocks);
+            this.completeUntil = completeUntil;
+        }
+    }
+
+    @CordaSerializable
+    public static class QueryStats {
+
+        private final long queries;
+        private final double averageMicros;
+        // Of the most recent queries.
+        private final long medianMicros;
+        private final long p95Micros;
+        private final long maxMicros;
+
+        public QueryStats(long queries, double averageMicros, long medianMicros, long p95Micros, long maxMicros) {
+            this.queries = queries;
+            this.averageMicros = averageMicros;
+            this.medianMicros = medianMicros;
+            this.p95Micros = p95Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getQueries() {
+            return queries;
+        }
+
+        public double getAverageMicros() {
+            return averageMicros;
+        }
+
+        public long getMedianMicros() {
+            return medianMicros;
+        }
+
+        public long getP95Micros() {
+            return p95Micros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d queries, average %.1f us; recent median %d us, p95 %d us, max %d us",
+                    queries, averageMicros, medianMicros, p95Micros, maxMicros);
+        }
+    }
+
+    @CordaSerializable
+    public static class HolderTypeSum {
+
+        private final String holder;
+        private final String type;
+        private final long sum;
+
+        public HolderTypeSum(String holder, String type, long sum) {
+            this.holder = holder;
+            this.type = type;
+            this.sum = sum;
+        }
+
+        public String getHolder() {
+            return holder;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+    }
+
+    @CordaSerializable
+    public static class ArchiveReport {
+
+        private final long archivedRows;
+        // Rows left in token_transactions (i.e. the hot table).
+        private final long hotRows;
+        private final long segmentBytes;
+        // Rows before the cutoff that stay live until their holders' checkpoints cover them; 0 until done.
+        private final long heldBackRows;
+        // No archivable rows before the cutoff are left (i.e. no more batches needed).
+        private final boolean done;
+
+        public ArchiveReport(long archivedRows, long hotRows, long segmentBytes, long heldBackRows, boolean done) {
+            this.archivedRows = archivedRows;
+            this.hotRows = hotRows;
+            this.segmentBytes = segmentBytes;
+            this.heldBackRows = heldBackRows;
+            this.done = done;
+        }
+
+        public long getArchivedRows() {
+            return archivedRows;
+        }
+
+        public long getHotRows() {
+            return hotRows;
+        }
+
+        public long getSegmentBytes() {
+            return segmentBytes;
+        }
+
+        public long getHeldBackRows() {
+            return heldBackRows;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+    }
+}
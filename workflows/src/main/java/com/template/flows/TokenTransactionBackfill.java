@@ -0,0 +1,342 @@
+package com.template.flows;
+
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.template.states.MultiLegTokenTransaction;
+import com.template.states.TokenTransaction;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.WireTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/*
+* Derives token-transactions from the token transactions that a node recorded before this CorDapp was installed.
+* Transactions are taken in the order the node's vault recorded FungibleTokens from them (so a batch can resume
+* after the last one of the previous batch, and transactions recorded meanwhile come after it), decoded in
+* parallel, and turned into ISSUE/MOVE/REDEEM records from the FungibleToken input and output deltas of each holder:
+*     - Holders whose balance went down sent tokens, holders whose balance went up received tokens.
+*     - More outputs than inputs means the issuer issued the difference (ISSUE);
+*       fewer outputs than inputs means the difference was redeemed to the issuer (REDEEM).
+*     - Senders are matched with receivers in order; everything else is a MOVE.
+* Each record is timestamped with the time the vault recorded the transaction, and carries the key
+* "backfill:<transaction id>:<leg>"; so re-running a batch, or backfilling the same transaction from another
+* of its holders, doesn't duplicate records (see "BackfillTokenTransactions").
+* Only transactions that left this node FungibleTokens are found: the issuer holds none of its tokens, so this
+* runs on the holders; a transfer that leaves the sender nothing is found on the receiver, and a redemption that
+* leaves the holder nothing is not found at all.
+* */
+@CordaService
+public class TokenTransactionBackfill extends SingletonSerializeAsToken {
+
+    private static final Logger logger = LoggerFactory.getLogger(TokenTransactionBackfill.class);
+
+    static final String PARALLELISM_CONFIG = "backfill.parallelism";
+
+    private final AppServiceHub serviceHub;
+    private volatile ForkJoinPool decoders;
+
+    public TokenTransactionBackfill(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+    }
+
+    /*
+    * The next transactions recorded after "after" (a cursor of "cursorOf", or null to start from the beginning),
+    * in (recorded time, transaction id) order.
+    * */
+    public List<RecordedTransaction> nextTransactions(String after, int limit) throws SQLException {
+        Instant afterTime = null;
+        String afterId = null;
+        if (after != null) {
+            int separator = after.indexOf('|');
+            afterTime = Instant.parse(after.substring(0, separator));
+            afterId = after.substring(separator + 1);
+        }
+
+        // All outputs of a transaction are recorded at once; so filtering rows by time doesn't change the minimum.
+        String sql = "SELECT transaction_id, MIN(recorded_timestamp) AS recorded FROM vault_states " +
+                "WHERE contract_state_class_name = ?" + (after == null ? "" : " AND recorded_timestamp >= ?") +
+                " GROUP BY transaction_id" + (after == null ? "" : " HAVING MIN(recorded_timestamp) > ? " +
+                "OR (MIN(recorded_timestamp) = ? AND transaction_id > ?)") +
+                " ORDER BY recorded, transaction_id";
+        List<RecordedTransaction> transactions = new ArrayList<>();
+        try (PreparedStatement select = serviceHub.jdbcSession().prepareStatement(sql)) {
+            select.setString(1, FungibleToken.class.getName());
+            if (after != null) {
+                select.setTimestamp(2, Timestamp.from(afterTime));
+                select.setTimestamp(3, Timestamp.from(afterTime));
+                select.setTimestamp(4, Timestamp.from(afterTime));
+                select.setString(5, afterId);
+            }
+            select.setMaxRows(limit);
+            try (ResultSet rows = select.executeQuery()) {
+                while (rows.next())
+                    transactions.add(new RecordedTransaction(SecureHash.parse(rows.getString(1)),
+                            rows.getTimestamp(2).toInstant()));
+            }
+        }
+        return transactions;
+    }
+
+    public static String cursorOf(RecordedTransaction transaction) {
+        return transaction.recorded + "|" + transaction.id;
+    }
+
+    /*
+    * Token-transactions (with the given explorer) of the given transactions.
+    * Transactions that already have token-transactions are skipped.
+    * */
+    public List<TokenTransaction> derive(List<RecordedTransaction> transactions, Party explorer)
+            throws ExecutionException, InterruptedException {
+        Map<SecureHash, Instant> recorded = new HashMap<>();
+        transactions.forEach(it -> recorded.put(it.id, it.recorded));
+        List<SignedTransaction> signedTransactions = fetch(transactions.stream()
+                .map(it -> it.id).collect(Collectors.toList()));
+        List<Decoded> decoded = decoders().submit(() -> signedTransactions.parallelStream()
+                .map(stx -> new Decoded(stx.getTx(), recorded.get(stx.getId())))
+                .collect(Collectors.toList()))
+                .get();
+
+        // Inputs are outputs of earlier transactions; only the FungibleToken ones are deserialized, again in parallel.
+        Map<SecureHash, Set<Integer>> inputIndexes = new HashMap<>();
+        for (Decoded it : decoded) {
+            if (!it.hasTokenTransactions)
+                it.inputs.forEach(ref -> inputIndexes.computeIfAbsent(ref.getTxhash(), id -> new HashSet<>())
+                        .add(ref.getIndex()));
+        }
+        List<SignedTransaction> producers = fetch(new ArrayList<>(inputIndexes.keySet()));
+        Map<StateRef, FungibleToken> inputStates = decoders().submit(() -> producers.parallelStream()
+                .flatMap(stx -> {
+                    WireTransaction wtx = stx.getTx();
+                    return inputIndexes.get(stx.getId()).stream().map(index -> wtx.<ContractState>outRef(index));
+                })
+                .filter(it -> it.getState().getData() instanceof FungibleToken)
+                .collect(Collectors.toMap(StateAndRef::getRef, it -> (FungibleToken) it.getState().getData())))
+                .get();
+
+        List<TokenTransaction> records = new ArrayList<>();
+        long skipped = 0;
+        for (Decoded it : decoded) {
+            if (it.hasTokenTransactions)
+                continue;
+            List<FungibleToken> inputs = new ArrayList<>();
+            for (StateRef ref : it.inputs) {
+                FungibleToken input = inputStates.get(ref);
+                if (input != null)
+                    inputs.add(input);
+            }
+            if (inputs.isEmpty() && it.outputs.isEmpty())
+                continue;
+
+            int leg = 0;
+            for (Leg legOf : legs(inputs, it.outputs)) {
+                String key = String.format("backfill:%s:%d", it.id, leg++);
+                if (legOf.from.equals(legOf.to))
+                    continue;
+                // Token-transactions are in whole units of the token.
+                BigDecimal quantity = legOf.quantity.stripTrailingZeros();
+                if (quantity.scale() > 0) {
+                    logger.warn("Skipped {} leg {} with fractional quantity {}.", it.id, leg - 1, quantity);
+                    skipped++;
+                    continue;
+                }
+                records.add(new TokenTransaction(new UniqueIdentifier(), explorer, it.recorded, legOf.type,
+                        legOf.from, legOf.to, quantity.longValueExact(), key));
+            }
+        }
+        logger.info("Derived {} token-transactions from {} transactions ({} legs skipped).",
+                records.size(), decoded.size(), skipped);
+        return records;
+    }
+
+    private List<SignedTransaction> fetch(List<SecureHash> ids) {
+        List<SignedTransaction> transactions = new ArrayList<>();
+        for (SecureHash id : ids) {
+            // Transactions that aren't verified yet are not returned.
+            SignedTransaction stx = serviceHub.getValidatedTransactions().getTransaction(id);
+            if (stx != null)
+                transactions.add(stx);
+        }
+        return transactions;
+    }
+
+    // Deserializing the wire transactions is the expensive part; it needs no database, so it runs in parallel.
+    private synchronized ForkJoinPool decoders() {
+        if (decoders == null) {
+            CordappConfig config = serviceHub.getAppContext().getConfig();
+            decoders = new ForkJoinPool(config.exists(PARALLELISM_CONFIG) ?
+                    config.getInt(PARALLELISM_CONFIG) : Runtime.getRuntime().availableProcessors());
+        }
+        return decoders;
+    }
+
+    private List<Leg> legs(List<FungibleToken> inputs, List<FungibleToken> outputs) {
+        // Balance change of each holder, per issued token type.
+        Map<IssuedTokenType, Map<String, BigDecimal>> deltas = new LinkedHashMap<>();
+        for (FungibleToken input : inputs)
+            deltas.computeIfAbsent(input.getIssuedTokenType(), it -> new LinkedHashMap<>())
+                    .merge(holderName(input.getHolder()), input.getAmount().toDecimal().negate(), BigDecimal::add);
+        for (FungibleToken output : outputs)
+            deltas.computeIfAbsent(output.getIssuedTokenType(), it -> new LinkedHashMap<>())
+                    .merge(holderName(output.getHolder()), output.getAmount().toDecimal(), BigDecimal::add);
+
+        List<Leg> legs = new ArrayList<>();
+        deltas.forEach((issuedTokenType, holderDeltas) -> {
+            String issuer = issuedTokenType.getIssuer().getName().toString();
+            List<Side> senders = new ArrayList<>();
+            List<Side> receivers = new ArrayList<>();
+            BigDecimal total = BigDecimal.ZERO;
+            for (Map.Entry<String, BigDecimal> delta : holderDeltas.entrySet()) {
+                total = total.add(delta.getValue());
+                if (delta.getValue().signum() < 0)
+                    senders.add(new Side(delta.getKey(), false, delta.getValue().negate()));
+                else if (delta.getValue().signum() > 0)
+                    receivers.add(new Side(delta.getKey(), false, delta.getValue()));
+            }
+            if (total.signum() > 0)
+                senders.add(0, new Side(issuer, true, total));
+            else if (total.signum() < 0)
+                receivers.add(new Side(issuer, true, total.negate()));
+
+            int s = 0;
+            int r = 0;
+            while (s < senders.size() && r < receivers.size()) {
+                Side sender = senders.get(s);
+                Side receiver = receivers.get(r);
+                BigDecimal quantity = sender.remaining.min(receiver.remaining);
+                String type = sender.issuer ? "ISSUE" : receiver.issuer ? "REDEEM" : "MOVE";
+                legs.add(new Leg(type, sender.holder, receiver.holder, quantity));
+                sender.remaining = sender.remaining.subtract(quantity);
+                receiver.remaining = receiver.remaining.subtract(quantity);
+                if (sender.remaining.signum() == 0)
+                    s++;
+                if (receiver.remaining.signum() == 0)
+                    r++;
+            }
+        });
+        return legs;
+    }
+
+    // Same format as "TokenTransaction.fromHolder" and "TokenTransaction.toHolder".
+    private String holderName(AbstractParty holder) {
+        CordaX500Name name = holder.nameOrNull();
+        if (name == null) {
+            Party party = serviceHub.getIdentityService().wellKnownPartyFromAnonymous(holder);
+            name = party != null ? party.getName() : null;
+        }
+        return name != null ? name.toString() : holder.toString();
+    }
+
+    // A transaction with the time the vault recorded it.
+    public static class RecordedTransaction {
+        private final SecureHash id;
+        private final Instant recorded;
+
+        private RecordedTransaction(SecureHash id, Instant recorded) {
+            this.id = id;
+            this.recorded = recorded;
+        }
+    }
+
+    // What derivation needs of a transaction, deserialized.
+    private static class Decoded {
+        private final SecureHash id;
+        private final Instant recorded;
+        private final boolean hasTokenTransactions;
+        private final List<StateRef> inputs;
+        private final List<FungibleToken> outputs;
+
+        private Decoded(WireTransaction wtx, Instant recorded) {
+            this.id = wtx.getId();
+            this.recorded = recorded;
+            this.hasTokenTransactions = !wtx.outputsOfType(TokenTransaction.class).isEmpty() ||
+                    !wtx.outputsOfType(MultiLegTokenTransaction.class).isEmpty();
+            this.inputs = wtx.getInputs();
+            this.outputs = wtx.outputsOfType(FungibleToken.class);
+        }
+    }
+
+    private static class Side {
+        private final String holder;
+        // The issuer side of issued or redeemed tokens (rather than a holder).
+        private final boolean issuer;
+        private BigDecimal remaining;
+
+        private Side(String holder, boolean issuer, BigDecimal remaining) {
+            this.holder = holder;
+            this.issuer = issuer;
+            this.remaining = remaining;
+        }
+    }
+
+    private static class Leg {
+        private final String type;
+        private final String from;
+        private final String to;
+        private final BigDecimal quantity;
+
+        private Leg(String type, String from, String to, BigDecimal quantity) {
+            this.type = type;
+            this.from = from;
+            this.to = to;
+            this.quantity = quantity;
+        }
+    }
+
+    @CordaSerializable
+    public static class BackfillReport {
+
+        private final long transactions;
+        // Records the explorer accepted (the others were already backfilled).
+        private final long records;
+        // Last processed transaction (see "cursorOf"); the next batch starts after it.
+        private final String cursor;
+        private final boolean done;
+
+        public BackfillReport(long transactions, long records, String cursor, boolean done) {
+            this.transactions = transactions;
+            this.records = records;
+            this.cursor = cursor;
+            this.done = done;
+        }
+
+        public long getTransactions() {
+            return transactions;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        public String getCursor() {
+            return cursor;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package com.template.flows;
+
+import com.template.states.MultiLegTokenTransaction;
+import com.template.states.TokenTransaction;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.ServiceLifecycleEvent;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+* Explorer-side, in-memory, column-oriented copy of token_transactions for fast reporting; multi-leg
+* token-transactions are indexed as one row per leg (see "TokenTransactionRows").
+* Every column is a primitive array (row i of the table is index i of every array); holders and types are
+* dictionary-encoded as ints, so scans compare ints instead of strings.
+*
+* Rows are read from the database in vault "recorded" order; a watermark (latest recorded time) marks where
+* the next catch-up starts. Catch-ups re-read the last "CATCH_UP_LAG" before the watermark, so transactions
+* that commit out of order are not missed; rows already indexed are recognised by their state reference.
+* The index is loaded when the node starts; after that, vault updates mark it stale, and the next query
+* catches up (queries run in flows, i.e. within a database transaction).
+* The index is saved to a snapshot file every "index.snapshotEvery" new rows, and loaded from it on restart;
+* so a restart only catches up what was recorded after the last snapshot.
+* Rows are never removed; so rows that "TokenTransactionArchive" moves out of the table stay indexed, and
+* rows that were archived while the node was down (or before the index had a snapshot) are read from the
+* archive's segments on first load.
+* */
+@CordaService
+public class TokenTransactionIndex extends SingletonSerializeAsToken {
+
+    private static final Logger logger = LoggerFactory.getLogger(TokenTransactionIndex.class);
+
+    static final String SNAPSHOT_FILE_CONFIG = "index.snapshotFile";
+    static final String SNAPSHOT_EVERY_CONFIG = "index.snapshotEvery";
+    private static final String DEFAULT_SNAPSHOT_FILE = "token-transactions-index.snapshot";
+    private static final int DEFAULT_SNAPSHOT_EVERY = 100_000;
+    private static final long CATCH_UP_LAG_MILLIS = 60_000;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final AppServiceHub serviceHub;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean stale = true;
+    private boolean loaded = false;
+
+    // Columns.
+    private int size = 0;
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private long[] quantities = new long[INITIAL_CAPACITY];
+    private int[] types = new int[INITIAL_CAPACITY];
+    private int[] fromHolders = new int[INITIAL_CAPACITY];
+    private int[] toHolders = new int[INITIAL_CAPACITY];
+
+    // Dictionaries of holders and types; -1 stands for null.
+    private final List<String> dictionary = new ArrayList<>();
+    private final Map<String, Integer> dictionaryIds = new HashMap<>();
+
+    // Latest recorded time of indexed rows, and the rows recorded within "CATCH_UP_LAG" of it.
+    private long watermark = 0;
+    private final Map<String, Long> recentRefs = new HashMap<>();
+    private int rowsSinceSnapshot = 0;
+
+    public TokenTransactionIndex(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        // After commit; a catch-up triggered before commit wouldn't see the new rows yet.
+        serviceHub.getVaultService().getUpdates().subscribe(update -> {
+            if (update.getProduced().stream().anyMatch(it -> it.getState().getData() instanceof TokenTransaction ||
+                    it.getState().getData() instanceof MultiLegTokenTransaction))
+                stale = true;
+        });
+        // Loaded by a flow (i.e. within a database transaction) once the node starts; so no query pays for it.
+        serviceHub.register(AppServiceHub.SERVICE_PRIORITY_NORMAL, event -> {
+            if (event == ServiceLifecycleEvent.STATE_MACHINE_STARTED)
+                serviceHub.startFlow(new TokenTransactionIndexQueries.Load());
+        });
+    }
+
+    // Loads the index (if not loaded yet) and catches up; must be called from within a flow.
+    public void load() throws SQLException, IOException {
+        refresh();
+    }
+
+    // Count and sum of quantity of the matching rows; null arguments match anything.
+    public Totals totals(String fromHolder, String toHolder, String type, Instant from, Instant to)
+            throws SQLException, IOException {
+        refresh();
+        lock.readLock().lock();
+        try {
+            // Values that were never indexed can't match any row.
+            Integer fromId = fromHolder == null ? null : dictionaryIds.get(fromHolder);
+            Integer toId = toHolder == null ? null : dictionaryIds.get(toHolder);
+            Integer typeId = type == null ? null : dictionaryIds.get(type);
+            if ((fromHolder != null && fromId == null) || (toHolder != null && toId == null) ||
+                    (type != null && typeId == null))
+                return new Totals(0, 0);
+
+            long fromMillis = from == null ? Long.MIN_VALUE : from.toEpochMilli();
+            long toMillis = to == null ? Long.MAX_VALUE : to.toEpochMilli();
+            long count = 0;
+            long sum = 0;
+            for (int i = 0; i < size; i++) {
+                if (timestamps[i] < fromMillis || timestamps[i] >= toMillis) continue;
+                if (fromId != null && fromHolders[i] != fromId) continue;
+                if (toId != null && toHolders[i] != toId) continue;
+                if (typeId != null && types[i] != typeId) continue;
+                count++;
+                sum += quantities[i];
+            }
+            return new Totals(count, sum);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Sum of quantity per to-holder of the matching rows; null arguments match anything.
+    public Map<String, Long> sumByToHolder(String type, Instant from, Instant to) throws SQLException, IOException {
+        refresh();
+        lock.readLock().lock();
+        try {
+            Integer typeId = type == null ? null : dictionaryIds.get(type);
+            if (type != null && typeId == null)
+                return new TreeMap<>();
+
+            long fromMillis = from == null ? Long.MIN_VALUE : from.toEpochMilli();
+            long toMillis = to == null ? Long.MAX_VALUE : to.toEpochMilli();
+            long[] sums = new long[dictionary.size()];
+            boolean[] seen = new boolean[dictionary.size()];
+            for (int i = 0; i < size; i++) {
+                if (timestamps[i] < fromMillis || timestamps[i] >= toMillis) continue;
+                if (typeId != null && types[i] != typeId) continue;
+                if (toHolders[i] < 0) continue;
+                sums[toHolders[i]] += quantities[i];
+                seen[toHolders[i]] = true;
+            }
+
+            Map<String, Long> result = new TreeMap<>();
+            for (int id = 0; id < sums.length; id++) {
+                if (seen[id])
+                    result.put(dictionary.get(id), sums[id]);
+            }
+            return result;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Must be called from within a flow (i.e. a database transaction).
+    private void refresh() throws SQLException, IOException {
+        if (!stale)
+            return;
+        lock.writeLock().lock();
+        try {
+            if (!stale)
+                return;
+            // Cleared before reading; so updates that arrive meanwhile trigger another catch-up.
+            stale = false;
+            if (!loaded) {
+                loadSnapshot();
+                loadArchived();
+                loaded = true;
+            }
+            catchUp();
+        }
+        catch (SQLException | IOException | RuntimeException ex) {
+            stale = true;
+            throw ex;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void catchUp() throws SQLException, IOException {
+        long start = System.nanoTime();
+        int added = 0;
+        long since = watermark - CATCH_UP_LAG_MILLIS;
+        try (PreparedStatement select = serviceHub.jdbcSession().prepareStatement(
+                "SELECT t.transaction_id, t.output_index, t.timestamp, t.type, t.from_holder, t.to_holder, " +
+                        "t.quantity, v.recorded_timestamp, t.leg_index FROM (" + TokenTransactionRows.ALL + ") t " +
+                        "JOIN vault_states v " +
+                        "ON v.transaction_id = t.transaction_id AND v.output_index = t.output_index " +
+                        "WHERE v.recorded_timestamp >= ? ORDER BY v.recorded_timestamp")) {
+            select.setTimestamp(1, new Timestamp(Math.max(0, since)));
+            select.setFetchSize(10_000);
+            try (ResultSet rows = select.executeQuery()) {
+                while (rows.next()) {
+                    String ref = TokenTransactionRows.refOf(rows.getString(1), rows.getInt(2), rows.getInt(9));
+                    long recorded = rows.getTimestamp(8).getTime();
+                    if (recentRefs.containsKey(ref))
+                        continue;
+                    append(rows.getTimestamp(3).getTime(), rows.getLong(7), encode(rows.getString(4)),
+                            encode(rows.getString(5)), encode(rows.getString(6)));
+                    recentRefs.put(ref, recorded);
+                    watermark = Math.max(watermark, recorded);
+                    added++;
+                }
+            }
+        }
+        long horizon = watermark - CATCH_UP_LAG_MILLIS;
+        recentRefs.values().removeIf(recorded -> recorded < horizon);
+
+        rowsSinceSnapshot += added;
+        if (added > 0)
+            logger.debug("Indexed {} token-transactions in {} ms ({} rows).", added,
+                    (System.nanoTime() - start) / 1_000_000, size);
+        if (rowsSinceSnapshot >= snapshotEvery())
+            saveSnapshot();
+    }
+
+    // Archived rows that were recorded since the snapshot (i.e. all of them without a snapshot).
+    private void loadArchived() throws SQLException, IOException {
+        long since = watermark - CATCH_UP_LAG_MILLIS;
+        int[] added = {0};
+        serviceHub.cordaService(TokenTransactionArchive.class).forEachArchived(record -> {
+            String ref = record.getTransactionId() + ":" + record.getOutputIndex();
+            long recorded = record.getRecordedTimestamp().toEpochMilli();
+            if (recorded < since || recentRefs.containsKey(ref))
+                return;
+            append(record.getTimestamp().toEpochMilli(), record.getQuantity(), encode(record.getType()),
+                    encode(record.getFromHolder()), encode(record.getToHolder()));
+            added[0]++;
+        });
+        if (added[0] > 0)
+            logger.info("Indexed {} archived token-transactions.", added[0]);
+    }
+
+    private void append(long timestamp, long quantity, int type, int fromHolder, int toHolder) {
+        if (size == timestamps.length) {
+            int capacity = size * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            quantities = Arrays.copyOf(quantities, capacity);
+            types = Arrays.copyOf(types, capacity);
+            fromHolders = Arrays.copyOf(fromHolders, capacity);
+            toHolders = Arrays.copyOf(toHolders, capacity);
+        }
+        timestamps[size] = timestamp;
+        quantities[size] = quantity;
+        types[size] = type;
+        fromHolders[size] = fromHolder;
+        toHolders[size] = toHolder;
+        size++;
+    }
+
+    private int encode(String value) {
+        if (value == null)
+            return -1;
+        Integer id = dictionaryIds.get(value);
+        if (id == null) {
+            id = dictionary.size();
+            dictionary.add(value);
+            dictionaryIds.put(value, id);
+        }
+        return id;
+    }
+
+    private Path snapshotFile() {
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        return NodePaths.resolve(serviceHub, config.exists(SNAPSHOT_FILE_CONFIG) ?
+                config.getString(SNAPSHOT_FILE_CONFIG) : DEFAULT_SNAPSHOT_FILE);
+    }
+
+    private int snapshotEvery() {
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        return config.exists(SNAPSHOT_EVERY_CONFIG) ? config.getInt(SNAPSHOT_EVERY_CONFIG) : DEFAULT_SNAPSHOT_EVERY;
+    }
+
+    private void saveSnapshot() throws IOException {
+        Path file = snapshotFile();
+        Path temporary = Paths.get(file + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temporary)))) {
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(watermark);
+            out.writeInt(recentRefs.size());
+            for (Map.Entry<String, Long> ref : recentRefs.entrySet()) {
+                out.writeUTF(ref.getKey());
+                out.writeLong(ref.getValue());
+            }
+            out.writeInt(dictionary.size());
+            for (String value : dictionary)
+                out.writeUTF(value);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(timestamps[i]);
+                out.writeLong(quantities[i]);
+                out.writeInt(types[i]);
+                out.writeInt(fromHolders[i]);
+                out.writeInt(toHolders[i]);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        rowsSinceSnapshot = 0;
+        logger.info("Saved token-transactions index snapshot ({} rows) to {}.", size, file);
+    }
+
+    // A snapshot that can't be read is ignored (i.e. the index is loaded from the database).
+    private void loadSnapshot() {
+        Path file = snapshotFile();
+        if (!Files.exists(file))
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_VERSION) {
+                logger.warn("Ignored token-transactions index snapshot {} of another version.", file);
+                return;
+            }
+            watermark = in.readLong();
+            int refCount = in.readInt();
+            for (int i = 0; i < refCount; i++)
+                recentRefs.put(in.readUTF(), in.readLong());
+            int dictionarySize = in.readInt();
+            for (int i = 0; i < dictionarySize; i++)
+                encode(in.readUTF());
+            int rowCount = in.readInt();
+            for (int i = 0; i < rowCount; i++)
+                append(in.readLong(), in.readLong(), in.readInt(), in.readInt(), in.readInt());
+        }
+        catch (IOException ex) {
+            logger.warn("Ignored unreadable token-transactions index snapshot " + file + ".", ex);
+            size = 0;
+            dictionary.clear();
+            dictionaryIds.clear();
+            recentRefs.clear();
+            watermark = 0;
+            return;
+        }
+        logger.info("Loaded token-transactions index snapshot ({} rows) from {}.", size, file);
+    }
+
+    @CordaSerializable
+    public static class Totals {
+
+        private final long count;
+        private final long sum;
+
+        public Totals(long count, long sum) {
+            this.count = count;
+            this.sum = sum;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+    }
+}
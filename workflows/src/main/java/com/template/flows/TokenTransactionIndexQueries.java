@@ -0,0 +1,91 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Map;
+
+/*
+* Explorer-side reporting queries answered from "TokenTransactionIndex" instead of the vault.
+* Null arguments match anything; time ranges are [from, to).
+* */
+public class TokenTransactionIndexQueries {
+
+    // Started by "TokenTransactionIndex" when the node starts.
+    @StartableByService
+    public static class Load extends FlowLogic<Void> {
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            try {
+                getServiceHub().cordaService(TokenTransactionIndex.class).load();
+            }
+            catch (IOException | SQLException ex) {
+                throw new FlowException("Failed to load the token-transactions index.", ex);
+            }
+            return null;
+        }
+    }
+
+    @StartableByRPC
+    public static class Totals extends FlowLogic<TokenTransactionIndex.Totals> {
+
+        private final String fromHolder;
+        private final String toHolder;
+        private final String type;
+        private final Instant from;
+        private final Instant to;
+
+        public Totals(String fromHolder, String toHolder, String type, Instant from, Instant to) {
+            this.fromHolder = fromHolder;
+            this.toHolder = toHolder;
+            this.type = type;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Suspendable
+        @Override
+        public TokenTransactionIndex.Totals call() throws FlowException {
+            try {
+                return getServiceHub().cordaService(TokenTransactionIndex.class)
+                        .totals(fromHolder, toHolder, type, from, to);
+            }
+            catch (IOException | SQLException ex) {
+                throw new FlowException("Failed to query the token-transactions index.", ex);
+            }
+        }
+    }
+
+    @StartableByRPC
+    public static class SumByToHolder extends FlowLogic<Map<String, Long>> {
+
+        private final String type;
+        private final Instant from;
+        private final Instant to;
+
+        public SumByToHolder(String type, Instant from, Instant to) {
+            this.type = type;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Suspendable
+        @Override
+        public Map<String, Long> call() throws FlowException {
+            try {
+                return getServiceHub().cordaService(TokenTransactionIndex.class).sumByToHolder(type, from, to);
+            }
+            catch (IOException | SQLException ex) {
+                throw new FlowException("Failed to query the token-transactions index.", ex);
+            }
+        }
+    }
+}
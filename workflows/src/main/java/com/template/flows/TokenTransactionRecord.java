@@ -0,0 +1,87 @@
+package com.template.flows;
+
+import net.corda.core.serialization.CordaSerializable;
+
+import java.time.Instant;
+
+/*
+* One row of the token_transactions table; used where rows are read outside of the vault
+* (e.g. archived segment files), so they can't be returned as "StateAndRef<TokenTransaction>".
+* */
+@CordaSerializable
+public class TokenTransactionRecord {
+
+    // Reference to the TokenTransaction state (i.e. transaction id and output index).
+    private final String transactionId;
+    private final int outputIndex;
+    private final String linearId;
+    private final String explorer;
+    private final Instant timestamp;
+    private final String type;
+    private final String fromHolder;
+    private final String toHolder;
+    private final long quantity;
+    private final String idempotencyKey;
+    // When the vault recorded the state.
+    private final Instant recordedTimestamp;
+
+    public TokenTransactionRecord(String transactionId, int outputIndex, String linearId, String explorer,
+                                  Instant timestamp, String type, String fromHolder, String toHolder,
+                                  long quantity, String idempotencyKey, Instant recordedTimestamp) {
+        this.transactionId = transactionId;
+        this.outputIndex = outputIndex;
+        this.linearId = linearId;
+        this.explorer = explorer;
+        this.timestamp = timestamp;
+        this.type = type;
+        this.fromHolder = fromHolder;
+        this.toHolder = toHolder;
+        this.quantity = quantity;
+        this.idempotencyKey = idempotencyKey;
+        this.recordedTimestamp = recordedTimestamp;
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    public int getOutputIndex() {
+        return outputIndex;
+    }
+
+    public String getLinearId() {
+        return linearId;
+    }
+
+    public String getExplorer() {
+        return explorer;
+    }
+
+    public Instant getTimestamp() {
+        return timestamp;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getFromHolder() {
+        return fromHolder;
+    }
+
+    public String getToHolder() {
+        return toHolder;
+    }
+
+    public long getQuantity() {
+        return quantity;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public Instant getRecordedTimestamp() {
+        return recordedTimestamp;
+    }
+}
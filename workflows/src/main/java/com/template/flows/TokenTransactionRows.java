@@ -0,0 +1,26 @@
+package com.template.flows;
+
+/*
+* SQL of all live token-transaction rows, as a derived table for "FROM (" + ALL + ") t":
+* the rows of token_transactions (single-leg), plus one row per leg of multi_leg_token_transactions
+* (see "MultiLegTokenTransaction"); so readers see an issuance the same way whichever state recorded it.
+* Columns are those of token_transactions, plus "leg_index" (-1 for single-leg rows); a row is identified by
+* (transaction_id, output_index, leg_index).
+* */
+final class TokenTransactionRows {
+
+    static final String ALL = "SELECT transaction_id, output_index, -1 AS leg_index, linear_id, explorer, " +
+            "timestamp, type, from_holder, to_holder, quantity, idempotency_key FROM token_transactions " +
+            "UNION ALL SELECT m.transaction_id, m.output_index, l.leg_index, m.linear_id, m.explorer, " +
+            "m.timestamp, m.type, l.from_holder, l.to_holder, l.quantity, m.idempotency_key " +
+            "FROM multi_leg_token_transactions m JOIN token_transaction_legs l " +
+            "ON l.transaction_id = m.transaction_id AND l.output_index = m.output_index";
+
+    private TokenTransactionRows() {
+    }
+
+    // Same format as the refs of archived rows, which are always single-leg.
+    static String refOf(String transactionId, int outputIndex, int legIndex) {
+        return legIndex < 0 ? transactionId + ":" + outputIndex : transactionId + ":" + outputIndex + ":" + legIndex;
+    }
+}
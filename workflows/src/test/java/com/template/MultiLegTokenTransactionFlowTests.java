@@ -0,0 +1,201 @@
+package com.template;
+
+import com.google.common.collect.ImmutableList;
+import com.template.flows.ArchivedTokenTransactions;
+import com.template.flows.HolderCheckpoints;
+import com.template.flows.IssueTokensWithTransaction;
+import com.template.flows.MultiLegTokenTransactionQueries;
+import com.template.flows.TokenTransactionArchive;
+import com.template.flows.TokenTransactionIndex;
+import com.template.flows.TokenTransactionIndexQueries;
+import com.template.flows.TokenTransactionRecord;
+import com.template.states.MultiLegTokenTransaction;
+import com.template.states.TokenTransaction;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MultiLegTokenTransactionFlowTests {
+
+    private MockNetwork network;
+    private StartedMockNode bank;
+    private StartedMockNode explorer;
+    private Party explorerParty;
+    private Party aliceParty;
+    private Party bobParty;
+
+    @Before
+    public void setup() throws IOException {
+        Map<String, String> tokensWorkflowsConfig = new LinkedHashMap<>();
+        tokensWorkflowsConfig.put("notary", "O=Notary,L=London,C=GB");
+        Map<String, String> tokensSelectionConfig = new LinkedHashMap<>();
+        tokensSelectionConfig.put("stateSelection.inMemory.enabled","false");
+        tokensSelectionConfig.put("stateSelection.inMemory.indexingStrategies", "[\"EXTERNAL_ID\"]");
+        tokensSelectionConfig.put("stateSelection.inMemory.cacheSize", "1024");
+        Map<String, String> flowsConfig = new LinkedHashMap<>();
+        flowsConfig.put("tokenTransactions.multiLeg", "true");
+        flowsConfig.put("archive.directory",
+                Files.createTempDirectory("token-transactions-archive").toString());
+        flowsConfig.put("index.snapshotFile", Files.createTempDirectory("token-transactions-index")
+                .resolve("index.snapshot").toString());
+
+        network = new MockNetwork(new MockNetworkParameters(ImmutableList.of(
+                TestCordapp.findCordapp("com.template.contracts"),
+                TestCordapp.findCordapp("com.template.flows").withConfig(flowsConfig),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.contracts"),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.workflows").withConfig(tokensWorkflowsConfig),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.money"),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.selection").withConfig(tokensSelectionConfig)
+        )).withNotarySpecs(Collections.singletonList(
+                new MockNetworkNotarySpec(CordaX500Name.parse("O=Notary,L=London,C=GB"), false))));
+
+        bank = network.createPartyNode(CordaX500Name.parse("O=Bank,L=London,C=GB"));
+        explorer = network.createPartyNode(CordaX500Name.parse("O=Explorer,L=London,C=GB"));
+        StartedMockNode alice = network.createPartyNode(CordaX500Name.parse("O=Alice,L=London,C=GB"));
+        StartedMockNode bob = network.createPartyNode(CordaX500Name.parse("O=Bob,L=London,C=GB"));
+
+        explorerParty = explorer.getInfo().getLegalIdentities().get(0);
+        aliceParty = alice.getInfo().getLegalIdentities().get(0);
+        bobParty = bob.getInfo().getLegalIdentities().get(0);
+
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private CordaFuture<SignedTransaction> issue(String idempotencyKey) {
+        CordaFuture<SignedTransaction> future = bank.startFlow(new IssueTokensWithTransaction.Initiator(
+                Arrays.asList(aliceParty, bobParty), Arrays.asList(10L, 20L), explorerParty, idempotencyKey));
+        network.runNetwork();
+        return future;
+    }
+
+    @Test
+    public void testIssueRecordsOneMultiLegTokenTransaction() throws ExecutionException, InterruptedException {
+        SignedTransaction signedTx = issue("multi-leg:1").get();
+
+        // One state with a leg per holder, instead of one state per holder.
+        assertEquals(0, signedTx.getTx().outputsOfType(TokenTransaction.class).size());
+        List<MultiLegTokenTransaction> outputs = signedTx.getTx().outputsOfType(MultiLegTokenTransaction.class);
+        assertEquals(1, outputs.size());
+        assertEquals(2, outputs.get(0).getLegs().size());
+        assertEquals(aliceParty.getName().toString(), outputs.get(0).getLegs().get(0).getToHolder());
+        assertEquals(20, outputs.get(0).getLegs().get(1).getQuantity());
+
+        // Explorer has the state, and its legs in the child table.
+        explorer.transaction(() -> {
+            List<StateAndRef<MultiLegTokenTransaction>> states = explorer.getServices().getVaultService()
+                    .queryBy(MultiLegTokenTransaction.class).getStates();
+            assertEquals(1, states.size());
+            assertEquals(outputs.get(0), states.get(0).getState().getData());
+
+            try (PreparedStatement select = explorer.getServices().jdbcSession().prepareStatement(
+                    "SELECT to_holder, quantity FROM token_transaction_legs " +
+                    "WHERE transaction_id = ? ORDER BY leg_index")) {
+                select.setString(1, signedTx.getId().toString());
+                try (ResultSet legs = select.executeQuery()) {
+                    legs.next();
+                    assertEquals(aliceParty.getName().toString(), legs.getString(1));
+                    assertEquals(10, legs.getLong(2));
+                    legs.next();
+                    assertEquals(bobParty.getName().toString(), legs.getString(1));
+                    assertEquals(20, legs.getLong(2));
+                }
+            }
+            catch (SQLException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return null;
+        });
+    }
+
+    @Test
+    public void testDuplicateMultiLegIssuanceIsRejected() throws ExecutionException, InterruptedException {
+        issue("multi-leg:2").get();
+        try {
+            issue("multi-leg:2").get();
+            fail("Duplicate issuance should be rejected.");
+        }
+        catch (ExecutionException ex) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testReadersIncludeLegs() throws ExecutionException, InterruptedException {
+        issue("multi-leg:3").get();
+        String alice = aliceParty.getName().toString();
+        String bob = bobParty.getName().toString();
+
+        CordaFuture<TokenTransactionIndex.Totals> totalsFuture = explorer.startFlow(
+                new TokenTransactionIndexQueries.Totals(null, alice, "ISSUE", null, null));
+        network.runNetwork();
+        assertEquals(1, totalsFuture.get().getCount());
+        assertEquals(10, totalsFuture.get().getSum());
+
+        CordaFuture<HolderCheckpoints.HolderTotals> bobFuture = explorer.startFlow(new HolderCheckpoints.Totals(bob));
+        network.runNetwork();
+        assertEquals(20, bobFuture.get().getReceived());
+
+        CordaFuture<List<TokenTransactionRecord>> aliceFuture = explorer.startFlow(
+                new ArchivedTokenTransactions.Query(alice, Instant.EPOCH, Instant.now().plus(Duration.ofHours(1))));
+        network.runNetwork();
+        assertEquals(1, aliceFuture.get().size());
+        assertEquals(10, aliceFuture.get().get(0).getQuantity());
+
+        CordaFuture<List<TokenTransactionArchive.HolderTypeSum>> sumsFuture = explorer.startFlow(
+                new MultiLegTokenTransactionQueries.SumByHolderAndType("toHolder"));
+        network.runNetwork();
+        Map<String, Long> sums = new HashMap<>();
+        sumsFuture.get().forEach(it -> sums.put(it.getHolder() + "/" + it.getType(), it.getSum()));
+        assertEquals(Long.valueOf(10), sums.get(alice + "/ISSUE"));
+        assertEquals(Long.valueOf(20), sums.get(bob + "/ISSUE"));
+    }
+
+    @Test
+    public void testIndexCatchesUpWithLaterMultiLegIssuances() throws ExecutionException, InterruptedException {
+        issue("multi-leg:4").get();
+        String alice = aliceParty.getName().toString();
+        CordaFuture<TokenTransactionIndex.Totals> firstFuture = explorer.startFlow(
+                new TokenTransactionIndexQueries.Totals(null, alice, "ISSUE", null, null));
+        network.runNetwork();
+        assertEquals(10, firstFuture.get().getSum());
+
+        // Issued after the index was queried; the next query sees it, like the vault does.
+        issue("multi-leg:5").get();
+        CordaFuture<TokenTransactionIndex.Totals> secondFuture = explorer.startFlow(
+                new TokenTransactionIndexQueries.Totals(null, alice, "ISSUE", null, null));
+        network.runNetwork();
+        CordaFuture<List<TokenTransactionArchive.HolderTypeSum>> sumsFuture = explorer.startFlow(
+                new MultiLegTokenTransactionQueries.SumByHolderAndType("toHolder"));
+        network.runNetwork();
+        long vaultSum = sumsFuture.get().stream()
+                .filter(it -> it.getHolder().equals(alice) && it.getType().equals("ISSUE"))
+                .mapToLong(TokenTransactionArchive.HolderTypeSum::getSum).sum();
+        assertEquals(20, vaultSum);
+        assertEquals(2, secondFuture.get().getCount());
+        assertEquals(vaultSum, secondFuture.get().getSum());
+    }
+}
@@ -0,0 +1,133 @@
+package com.template;
+
+import com.google.common.collect.ImmutableList;
+import com.template.flows.IssueTokensWithTransaction;
+import com.template.flows.NotarySelector;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class NotarySelectionFlowTests {
+
+    private MockNetwork network;
+    private StartedMockNode bank;
+    private Party explorerParty;
+    private Party aliceParty;
+    private Party bobParty;
+
+    private void startNetwork(String strategy) {
+        Map<String, String> tokensWorkflowsConfig = new LinkedHashMap<>();
+        tokensWorkflowsConfig.put("notary", "O=Notary1,L=London,C=GB");
+        Map<String, String> tokensSelectionConfig = new LinkedHashMap<>();
+        tokensSelectionConfig.put("stateSelection.inMemory.enabled","false");
+        tokensSelectionConfig.put("stateSelection.inMemory.indexingStrategies", "[\"EXTERNAL_ID\"]");
+        tokensSelectionConfig.put("stateSelection.inMemory.cacheSize", "1024");
+        Map<String, String> flowsConfig = new LinkedHashMap<>();
+        flowsConfig.put("notarySelection.strategy", strategy);
+
+        network = new MockNetwork(new MockNetworkParameters(ImmutableList.of(
+                TestCordapp.findCordapp("com.template.contracts"),
+                TestCordapp.findCordapp("com.template.flows").withConfig(flowsConfig),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.contracts"),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.workflows").withConfig(tokensWorkflowsConfig),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.money"),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.selection").withConfig(tokensSelectionConfig)
+        )).withNotarySpecs(Arrays.asList(
+                new MockNetworkNotarySpec(CordaX500Name.parse("O=Notary1,L=London,C=GB"), false),
+                new MockNetworkNotarySpec(CordaX500Name.parse("O=Notary2,L=London,C=GB"), false))));
+
+        bank = network.createPartyNode(CordaX500Name.parse("O=Bank,L=London,C=GB"));
+        StartedMockNode explorer = network.createPartyNode(CordaX500Name.parse("O=Explorer,L=London,C=GB"));
+        StartedMockNode alice = network.createPartyNode(CordaX500Name.parse("O=Alice,L=London,C=GB"));
+        StartedMockNode bob = network.createPartyNode(CordaX500Name.parse("O=Bob,L=London,C=GB"));
+
+        explorerParty = explorer.getInfo().getLegalIdentities().get(0);
+        aliceParty = alice.getInfo().getLegalIdentities().get(0);
+        bobParty = bob.getInfo().getLegalIdentities().get(0);
+
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private Party issue(Party holder) throws ExecutionException, InterruptedException {
+        CordaFuture<SignedTransaction> future = bank.startFlow(
+                new IssueTokensWithTransaction.Initiator(holder, 10, explorerParty));
+        network.runNetwork();
+        return future.get().getNotary();
+    }
+
+    @Test
+    public void testPreferredNotaryByDefault() throws ExecutionException, InterruptedException {
+        startNetwork("PREFERRED");
+        assertEquals("O=Notary1, L=London, C=GB", issue(aliceParty).getName().toString());
+        assertEquals("O=Notary1, L=London, C=GB", issue(bobParty).getName().toString());
+    }
+
+    @Test
+    public void testRoundRobinUsesAllNotaries() throws ExecutionException, InterruptedException {
+        startNetwork("ROUND_ROBIN");
+        Set<Party> notaries = new HashSet<>();
+        for (int i = 0; i < 4; i++)
+            notaries.add(issue(aliceParty));
+        assertEquals(2, notaries.size());
+    }
+
+    @Test
+    public void testHolderHashKeepsHolderOnSameNotary() throws ExecutionException, InterruptedException {
+        startNetwork("HOLDER_HASH");
+        Party aliceNotary = issue(aliceParty);
+        assertEquals(aliceNotary, issue(aliceParty));
+        assertEquals(aliceNotary, issue(aliceParty));
+    }
+
+    @Test
+    public void testLeastLoadedPicksNotaryWithFewestInFlight() {
+        startNetwork("LEAST_LOADED");
+        NotarySelector selector = bank.getServices().cordaService(NotarySelector.class);
+
+        // Neither has any in flight; the second pick must not pile onto the first.
+        Party first = selector.select(aliceParty);
+        Party second = selector.select(aliceParty);
+        assertNotEquals(first, second);
+
+        // Both have one; once the first is released, it has fewest.
+        selector.release(first);
+        assertEquals(first, selector.select(bobParty));
+        assertEquals(1, selector.inFlight(first));
+        assertEquals(1, selector.inFlight(second));
+    }
+
+    @Test
+    public void testLeastLoadedSpreadsConcurrentIssuances() throws ExecutionException, InterruptedException {
+        startNetwork("LEAST_LOADED");
+        List<CordaFuture<SignedTransaction>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            futures.add(bank.startFlow(new IssueTokensWithTransaction.Initiator(
+                    i % 2 == 0 ? aliceParty : bobParty, 10, explorerParty)));
+        network.runNetwork();
+
+        Set<Party> notaries = new HashSet<>();
+        for (CordaFuture<SignedTransaction> future : futures)
+            notaries.add(future.get().getNotary());
+        assertEquals(2, notaries.size());
+
+        // Every finalized issuance released its notary.
+        NotarySelector selector = bank.getServices().cordaService(NotarySelector.class);
+        for (Party notary : notaries)
+            assertEquals(0, selector.inFlight(notary));
+    }
+}
@@ -2,11 +2,29 @@ package com.template;
 
 import com.google.common.collect.ImmutableList;
 import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.contracts.utilities.AmountUtilitiesKt;
+import com.r3.corda.lib.tokens.money.FiatCurrency;
+import com.r3.corda.lib.tokens.workflows.flows.rpc.IssueTokens;
+import com.template.flows.ArchivedTokenTransactions;
+import com.template.flows.BackfillTokenTransactions;
+import com.template.flows.CheckpointMetrics;
+import com.template.flows.CheckpointSizes;
+import com.template.flows.HolderCheckpoints;
+import com.template.flows.IdempotencyKeyStats;
+import com.template.flows.IdempotencyKeys;
 import com.template.flows.IssueTokensWithTransaction;
+import com.template.flows.TokenTransactionArchive;
+import com.template.flows.TokenTransactionBackfill;
+import com.template.flows.TokenTransactionIndex;
+import com.template.flows.TokenTransactionIndexQueries;
+import com.template.flows.TokenTransactionRecord;
 import com.template.schemas.TokenTransactionSchemaV1;
 import com.template.states.TokenTransaction;
+import com.template.states.TokenTransactionCheckpoint;
 import net.corda.core.concurrent.CordaFuture;
 import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowException;
 import net.corda.core.identity.CordaX500Name;
 import net.corda.core.identity.Party;
 import net.corda.core.node.services.Vault;
@@ -21,11 +39,18 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
 
 import static net.corda.core.node.services.vault.QueryCriteriaUtils.getField;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TokenTransactionFlowTests {
 
@@ -46,7 +71,7 @@ public class TokenTransactionFlowTests {
     }
 
     @Before
-    public void setup() {
+    public void setup() throws IOException {
 
         Map<String, String> tokensWorkflowsConfig = new LinkedHashMap<>();
         tokensWorkflowsConfig.put("notary", "O=Notary,L=London,C=GB");
@@ -54,10 +79,16 @@ public class TokenTransactionFlowTests {
         tokensSelectionConfig.put("stateSelection.inMemory.enabled","false");
         tokensSelectionConfig.put("stateSelection.inMemory.indexingStrategies", "[\"EXTERNAL_ID\"]");
         tokensSelectionConfig.put("stateSelection.inMemory.cacheSize", "1024");
+        Map<String, String> flowsConfig = new LinkedHashMap<>();
+        flowsConfig.put("archive.directory",
+                Files.createTempDirectory("token-transactions-archive").toString());
+        flowsConfig.put("checkpointMetrics.enabled", "true");
+        flowsConfig.put("index.snapshotFile", Files.createTempDirectory("token-transactions-index")
+                .resolve("index.snapshot").toString());
 
         network = new MockNetwork(new MockNetworkParameters(ImmutableList.of(
                 TestCordapp.findCordapp("com.template.contracts"),
-                TestCordapp.findCordapp("com.template.flows"),
+                TestCordapp.findCordapp("com.template.flows").withConfig(flowsConfig),
                 TestCordapp.findCordapp("com.r3.corda.lib.tokens.contracts"),
                 TestCordapp.findCordapp("com.r3.corda.lib.tokens.workflows").withConfig(tokensWorkflowsConfig),
                 TestCordapp.findCordapp("com.r3.corda.lib.tokens.money"),
@@ -212,4 +243,384 @@ public class TokenTransactionFlowTests {
             return null;
         });
     }
+
+    @Test
+    public void testHolderCheckpoints() throws ExecutionException, InterruptedException {
+        bank.startFlow(new IssueTokensWithTransaction.Initiator(aliceParty, 50, explorerParty));
+        network.runNetwork();
+        bank.startFlow(new IssueTokensWithTransaction.Initiator(aliceParty, 75, explorerParty));
+        network.runNetwork();
+
+        // Long interval, so the scheduled roll doesn't kick in during the test.
+        String aliceHolder = aliceParty.getName().toString();
+        CordaFuture<SignedTransaction> checkpointFuture = explorer.startFlow(
+                new HolderCheckpoints.Create(aliceHolder, Duration.ofDays(1)));
+        network.runNetwork();
+        checkpointFuture.get();
+
+        explorer.transaction(() -> {
+            List<StateAndRef<TokenTransactionCheckpoint>> checkpoints = explorer.getServices().getVaultService()
+                    .queryBy(TokenTransactionCheckpoint.class).getStates();
+            assertEquals(1, checkpoints.size());
+            TokenTransactionCheckpoint checkpoint = checkpoints.get(0).getState().getData();
+            assertEquals(aliceHolder, checkpoint.getHolder());
+            assertEquals(125, checkpoint.getReceived());
+            assertEquals(0, checkpoint.getSent());
+
+            return null;
+        });
+
+        // Newer token-transactions are added on top of the checkpoint.
+        bank.startFlow(new IssueTokensWithTransaction.Initiator(aliceParty, 100, explorerParty));
+        network.runNetwork();
+        CordaFuture<HolderCheckpoints.HolderTotals> aliceTotals = explorer.startFlow(
+                new HolderCheckpoints.Totals(aliceHolder));
+        network.runNetwork();
+        assertEquals(225, aliceTotals.get().getBalance());
+
+        // Holders without a checkpoint are totalled from the whole history.
+        CordaFuture<HolderCheckpoints.HolderTotals> bankTotals = explorer.startFlow(
+                new HolderCheckpoints.Totals(bankParty.getName().toString()));
+        network.runNetwork();
+        assertEquals(225, bankTotals.get().getSent());
+    }
+
+    @Test
+    public void testHolderCheckpointsIncludeLateTokenTransactions()
+            throws ExecutionException, InterruptedException {
+        // Plain Tokens SDK issuance; its token-transaction is only recorded later (by backfill).
+        IssuedTokenType issuedUsd = new IssuedTokenType(bankParty, FiatCurrency.Companion.getInstance("USD"));
+        FungibleToken usdToken = new FungibleToken(AmountUtilitiesKt.amount(quantity, issuedUsd), aliceParty, null);
+        bank.startFlow(new IssueTokens(Collections.singletonList(usdToken), Collections.emptyList()));
+        network.runNetwork();
+
+        // The explorer takes Alice's checkpoint before the backfill.
+        String aliceHolder = aliceParty.getName().toString();
+        CordaFuture<SignedTransaction> checkpointFuture = explorer.startFlow(
+                new HolderCheckpoints.Create(aliceHolder, Duration.ofDays(1)));
+        network.runNetwork();
+        checkpointFuture.get();
+
+        // Recorded after the checkpoint, with a timestamp older than the checkpoint.
+        CordaFuture<TokenTransactionBackfill.BackfillReport> backfillFuture = alice.startFlow(
+                new BackfillTokenTransactions(null, 1000, explorerParty));
+        network.runNetwork();
+        assertEquals(1, backfillFuture.get().getRecords());
+        explorer.transaction(() -> {
+            TokenTransaction backfilled = explorer.getServices().getVaultService()
+                    .queryBy(TokenTransaction.class).getStates().get(0).getState().getData();
+            TokenTransactionCheckpoint checkpoint = explorer.getServices().getVaultService()
+                    .queryBy(TokenTransactionCheckpoint.class).getStates().get(0).getState().getData();
+            assertTrue(backfilled.getTimestamp().isBefore(checkpoint.getAsOf()));
+            assertEquals(0, checkpoint.getReceived());
+
+            return null;
+        });
+
+        CordaFuture<HolderCheckpoints.HolderTotals> aliceTotals = explorer.startFlow(
+                new HolderCheckpoints.Totals(aliceHolder));
+        network.runNetwork();
+        assertEquals(quantity, aliceTotals.get().getReceived());
+    }
+
+    @Test
+    public void testArchiveTokenTransactions() throws ExecutionException, InterruptedException {
+        bank.startFlow(new IssueTokensWithTransaction.Initiator(aliceParty, 50, explorerParty, "archived-1"));
+        network.runNetwork();
+        bank.startFlow(new IssueTokensWithTransaction.Initiator(bobParty, 75, explorerParty));
+        network.runNetwork();
+
+        // Rows are only archived once both holders' checkpoints cover them.
+        CordaFuture<TokenTransactionArchive.ArchiveReport> archiveFuture = explorer.startFlow(
+                new ArchivedTokenTransactions.Archive(Instant.now()));
+        network.runNetwork();
+        assertEquals(0, archiveFuture.get().getArchivedRows());
+        assertEquals(2, archiveFuture.get().getHeldBackRows());
+        for (Party holder : Arrays.asList(bankParty, aliceParty, bobParty)) {
+            explorer.startFlow(new HolderCheckpoints.Create(holder.getName().toString(), Duration.ofDays(1)));
+            network.runNetwork();
+        }
+
+        // Batches of one row; so it takes two runs.
+        Instant cutoff = Instant.now();
+        archiveFuture = explorer.startFlow(
+                new ArchivedTokenTransactions.Archive(cutoff, 1));
+        network.runNetwork();
+        TokenTransactionArchive.ArchiveReport report = archiveFuture.get();
+        assertEquals(1, report.getArchivedRows());
+        assertEquals(1, report.getHotRows());
+        assertFalse(report.isDone());
+
+        archiveFuture = explorer.startFlow(new ArchivedTokenTransactions.Archive(cutoff, 1));
+        network.runNetwork();
+        report = archiveFuture.get();
+        assertEquals(1, report.getArchivedRows());
+        assertEquals(0, report.getHotRows());
+        assertEquals(0, report.getHeldBackRows());
+        assertTrue(report.isDone());
+
+        // The archived key is still a duplicate.
+        CordaFuture<SignedTransaction> retry = bank.startFlow(
+                new IssueTokensWithTransaction.Initiator(aliceParty, 50, explorerParty, "archived-1"));
+        network.runNetwork();
+        try {
+            retry.get();
+            fail("Duplicate of an archived request should be rejected.");
+        }
+        catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof FlowException);
+        }
+
+        bank.startFlow(new IssueTokensWithTransaction.Initiator(aliceParty, 100, explorerParty));
+        network.runNetwork();
+
+        // Archived and live rows are merged.
+        CordaFuture<List<TokenTransactionRecord>> aliceFuture = explorer.startFlow(
+                new ArchivedTokenTransactions.Query(aliceParty.getName().toString(), Instant.EPOCH,
+                        Instant.now().plus(Duration.ofHours(1))));
+        network.runNetwork();
+        List<TokenTransactionRecord> aliceRecords = aliceFuture.get();
+        assertEquals(2, aliceRecords.size());
+        assertEquals(50, aliceRecords.get(0).getQuantity());
+        assertEquals("archived-1", aliceRecords.get(0).getIdempotencyKey());
+        assertEquals(100, aliceRecords.get(1).getQuantity());
+
+        CordaFuture<TokenTransactionArchive.QueryStats> statsFuture = explorer.startFlow(
+                new ArchivedTokenTransactions.QueryStats());
+        network.runNetwork();
+        assertEquals(1, statsFuture.get().getQueries());
+    }
+
+    @Test
+    public void testDuplicateIssuanceIsRejected() throws ExecutionException, InterruptedException {
+        bank.startFlow(new IssueTokensWithTransaction.Initiator(aliceParty, 50, explorerParty, "request-1"));
+        network.runNetwork();
+
+        // A retry of the same request.
+        CordaFuture<SignedTransaction> retry = bank.startFlow(
+                new IssueTokensWithTransaction.Initiator(aliceParty, 50, explorerParty, "request-1"));
+        network.runNetwork();
+        try {
+            retry.get();
+            fail("Duplicate request should be rejected.");
+        }
+        catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof FlowException);
+        }
+
+        bank.startFlow(new IssueTokensWithTransaction.Initiator(aliceParty, 50, explorerParty, "request-2"));
+        network.runNetwork();
+
+        explorer.transaction(() -> {
+            List<StateAndRef<TokenTransaction>> tokenTransactions = explorer.getServices().getVaultService()
+                    .queryBy(TokenTransaction.class).getStates();
+            assertEquals(2, tokenTransactions.size());
+
+            return null;
+        });
+
+        // Three checks; the retry was answered from the recent keys, the others by the bloom filter.
+        CordaFuture<IdempotencyKeys.Stats> statsFuture = explorer.startFlow(new IdempotencyKeyStats());
+        network.runNetwork();
+        IdempotencyKeys.Stats stats = statsFuture.get();
+        assertEquals(3, stats.getLookups());
+        assertEquals(0, stats.getDatabaseLookups());
+        assertEquals(1.0, stats.getDatabaseSkipRate(), 0);
+        assertEquals(0.0, stats.getFalsePositiveRate(), 0);
+        assertTrue(stats.getAverageLookupMicros() > 0);
+    }
+
+    @Test
+    public void testConcurrentRetryIsRejected() throws InterruptedException {
+        // A retry (e.g. after an RPC timeout) while the first request is still in flight.
+        CordaFuture<SignedTransaction> first = bank.startFlow(
+                new IssueTokensWithTransaction.Initiator(aliceParty, 50, explorerParty, "request-3"));
+        CordaFuture<SignedTransaction> retry = bank.startFlow(
+                new IssueTokensWithTransaction.Initiator(aliceParty, 50, explorerParty, "request-3"));
+        network.runNetwork();
+
+        int succeeded = 0;
+        for (CordaFuture<SignedTransaction> future : Arrays.asList(first, retry)) {
+            try {
+                future.get();
+                succeeded++;
+            }
+            catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof FlowException);
+            }
+        }
+        assertEquals(1, succeeded);
+
+        explorer.transaction(() -> {
+            List<StateAndRef<TokenTransaction>> tokenTransactions = explorer.getServices().getVaultService()
+                    .queryBy(TokenTransaction.class).getStates();
+            assertEquals(1, tokenTransactions.size());
+
+            return null;
+        });
+    }
+
+    @Test
+    public void testBackfillFromPlainTokenHistory() throws ExecutionException, InterruptedException {
+        // Issue with the plain Tokens SDK (i.e. without a token-transaction).
+        IssuedTokenType issuedUsd = new IssuedTokenType(bankParty, FiatCurrency.Companion.getInstance("USD"));
+        FungibleToken usdToken = new FungibleToken(AmountUtilitiesKt.amount(quantity, issuedUsd), aliceParty, null);
+        bank.startFlow(new IssueTokens(Collections.singletonList(usdToken), Collections.emptyList()));
+        network.runNetwork();
+
+        // Alice backfills her history to the explorer.
+        CordaFuture<TokenTransactionBackfill.BackfillReport> backfillFuture = alice.startFlow(
+                new BackfillTokenTransactions(null, 1000, explorerParty));
+        network.runNetwork();
+        TokenTransactionBackfill.BackfillReport report = backfillFuture.get();
+        assertEquals(1, report.getRecords());
+        assertTrue(report.isDone());
+
+        explorer.transaction(() -> {
+            List<StateAndRef<TokenTransaction>> tokenTransactions = explorer.getServices().getVaultService()
+                    .queryBy(TokenTransaction.class).getStates();
+            assertEquals(1, tokenTransactions.size());
+            TokenTransaction recordedTokenTransaction = tokenTransactions.get(0).getState().getData();
+            assertEquals(recordedTokenTransaction.getType(), "ISSUE");
+            assertEquals(recordedTokenTransaction.getFromHolder(), bankParty.getName().toString());
+            assertEquals(recordedTokenTransaction.getToHolder(), aliceParty.getName().toString());
+            assertEquals(recordedTokenTransaction.getQuantity(), quantity);
+
+            return null;
+        });
+
+        // Running it again doesn't duplicate records; resuming from the cursor finds nothing new.
+        CordaFuture<TokenTransactionBackfill.BackfillReport> rerunFuture = alice.startFlow(
+                new BackfillTokenTransactions(null, 1000, explorerParty));
+        network.runNetwork();
+        assertEquals(0, rerunFuture.get().getRecords());
+        CordaFuture<TokenTransactionBackfill.BackfillReport> resumeFuture = alice.startFlow(
+                new BackfillTokenTransactions(report.getCursor(), 1000, explorerParty));
+        network.runNetwork();
+        assertEquals(0, resumeFuture.get().getTransactions());
+        explorer.transaction(() -> {
+            assertEquals(1, explorer.getServices().getVaultService().queryBy(TokenTransaction.class)
+                    .getStates().size());
+            return null;
+        });
+    }
+
+    @Test
+    public void testIssueToSeveralHolders() throws ExecutionException, InterruptedException {
+        CordaFuture<SignedTransaction> future = bank.startFlow(new IssueTokensWithTransaction.Initiator(
+                Arrays.asList(aliceParty, bobParty), Arrays.asList(50L, 75L), explorerParty, "batch-1"));
+        network.runNetwork();
+        SignedTransaction signedTx = future.get();
+
+        assertEquals(2, signedTx.getTx().outputsOfType(FungibleToken.class).size());
+        List<TokenTransaction> tokenTransactionOutputs = signedTx.getTx().outputsOfType(TokenTransaction.class);
+        assertEquals(2, tokenTransactionOutputs.size());
+        assertEquals(aliceParty.getName().toString(), tokenTransactionOutputs.get(0).getToHolder());
+        assertEquals(50, tokenTransactionOutputs.get(0).getQuantity());
+        assertEquals(bobParty.getName().toString(), tokenTransactionOutputs.get(1).getToHolder());
+        assertEquals(75, tokenTransactionOutputs.get(1).getQuantity());
+
+        // Both holders recorded their token.
+        for (StartedMockNode node : Arrays.asList(alice, bob)) {
+            node.transaction(() -> {
+                assertEquals(1, node.getServices().getVaultService().queryBy(FungibleToken.class)
+                        .getStates().size());
+
+                return null;
+            });
+        }
+    }
+
+    @Test
+    public void testIndexMatchesVaultQueries() throws ExecutionException, InterruptedException {
+        for (long issued : Arrays.asList(50L, 75L, 100L)) {
+            bank.startFlow(new IssueTokensWithTransaction.Initiator(aliceParty, issued, explorerParty));
+            network.runNetwork();
+        }
+        bank.startFlow(new IssueTokensWithTransaction.Initiator(bobParty, 30, explorerParty));
+        network.runNetwork();
+
+        CordaFuture<TokenTransactionIndex.Totals> totalsFuture = explorer.startFlow(
+                new TokenTransactionIndexQueries.Totals(null, aliceParty.getName().toString(), "ISSUE", null, null));
+        network.runNetwork();
+        TokenTransactionIndex.Totals totals = totalsFuture.get();
+        assertEquals(3, totals.getCount());
+        assertEquals(225, totals.getSum());
+
+        CordaFuture<Map<String, Long>> sumsFuture = explorer.startFlow(
+                new TokenTransactionIndexQueries.SumByToHolder("ISSUE", null, null));
+        network.runNetwork();
+        Map<String, Long> sums = sumsFuture.get();
+        assertEquals(Long.valueOf(225), sums.get(aliceParty.getName().toString()));
+        assertEquals(Long.valueOf(30), sums.get(bobParty.getName().toString()));
+
+        // Same answer as the vault (see "TokenTransactionIndexBenchmark" in the benchmark source set for timings).
+        explorer.transaction(() -> {
+            FieldInfo quantityField = getField("quantity",
+                    TokenTransactionSchemaV1.PersistentTokenTransaction.class);
+            FieldInfo toHolderField = getField("toHolder",
+                    TokenTransactionSchemaV1.PersistentTokenTransaction.class);
+            QueryCriteria aliceSum = new VaultCustomQueryCriteria(
+                    Builder.equal(toHolderField, aliceParty.getName().toString()))
+                    .and(new VaultCustomQueryCriteria(Builder.sum(quantityField)));
+            Object vaultSum = explorer.getServices().getVaultService()
+                    .queryBy(TokenTransaction.class, aliceSum).getOtherResults().get(0);
+            assertEquals(totals.getSum(), ((Number) vaultSum).longValue());
+
+            return null;
+        });
+    }
+
+    @Test
+    public void testIssuanceCheckpointSizes() throws ExecutionException, InterruptedException {
+        String initiator = IssueTokensWithTransaction.Initiator.class.getName();
+
+        CordaFuture<SignedTransaction> singleTxFuture = bank.startFlow(
+                new IssueTokensWithTransaction.Initiator(aliceParty, quantity, explorerParty));
+        network.runNetwork();
+        SignedTransaction singleTx = singleTxFuture.get();
+        CordaFuture<CheckpointMetrics.Snapshot> singleFuture = bank.startFlow(new CheckpointSizes(initiator));
+        network.runNetwork();
+        CheckpointMetrics.Snapshot single = singleFuture.get();
+        assertTrue(single.getCount() > 0);
+
+        /*
+        * The baseline is the flow's smallest checkpoint, measured in this run: the one after the duplicate check,
+        * before anything is built (i.e. the fiber stack, the flow's fields and one session).
+        * Sub-flows may add about as much again for their own frames and sessions, and the signed transaction may be
+        * live twice (the initiator's and its sub-flow's); anything beyond that is state that shouldn't be live.
+        * */
+        long singleBound = 2 * single.getMinBytes() + 2 * singleTx.getTxBits().getSize();
+        assertTrue("Single issuance checkpoints reached " + single.getMaxBytes() + " bytes, over " + singleBound +
+                        " bytes (baseline " + single.getMinBytes() + " bytes, transaction " +
+                        singleTx.getTxBits().getSize() + " bytes).",
+                single.getMaxBytes() <= singleBound);
+
+        // Batch of 20 holders.
+        List<Party> holders = new ArrayList<>();
+        List<Long> quantities = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            holders.add(i % 2 == 0 ? aliceParty : bobParty);
+            quantities.add(quantity);
+        }
+        CordaFuture<SignedTransaction> batchFuture = bank.startFlow(
+                new IssueTokensWithTransaction.Initiator(holders, quantities, explorerParty, "batch-1"));
+        network.runNetwork();
+        SignedTransaction batchTx = batchFuture.get();
+        CordaFuture<CheckpointMetrics.Snapshot> afterBatchFuture = bank.startFlow(new CheckpointSizes(initiator));
+        network.runNetwork();
+        CheckpointMetrics.Snapshot afterBatch = afterBatchFuture.get();
+        assertTrue(afterBatch.getCount() > single.getCount());
+
+        /*
+        * Checkpoints grow with the signed transaction, but not with the builder and states: the extra 19 holders
+        * may add at most two copies of the extra transaction bytes (the initiator's and its sub-flow's), where
+        * keeping the builder, tokens and token-transactions live would add several more.
+        * */
+        long transactionGrowth = batchTx.getTxBits().getSize() - singleTx.getTxBits().getSize();
+        long checkpointGrowth = afterBatch.getMaxBytes() - single.getMaxBytes();
+        assertTrue("Checkpoints grew from " + single.getMaxBytes() + " to " + afterBatch.getMaxBytes() +
+                        " bytes, the transaction by " + transactionGrowth + " bytes.",
+                checkpointGrowth <= 2 * transactionGrowth);
+    }
 }